@@ -31,6 +31,7 @@ import org.briarproject.mailbox.core.event.EventBus
 import org.briarproject.mailbox.core.event.EventExecutor
 import org.briarproject.mailbox.core.lifecycle.IoExecutor
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager
+import org.briarproject.mailbox.core.lifecycle.Service
 import org.briarproject.mailbox.core.lifecycle.ServiceException
 import org.briarproject.mailbox.core.server.WebServerManager
 import org.briarproject.mailbox.core.settings.SettingsManager
@@ -104,7 +105,10 @@ internal class AndroidTorModule {
             architecture,
             app.getDir("tor", Context.MODE_PRIVATE)
         ) { webServerManager.port }.also {
-            lifecycleManager.registerService(it)
+            // Tor needs to know the network status when starting,
+            // and the hidden service forwards connections to the web server
+            val dependencies = listOfNotNull(networkManager as? Service, webServerManager)
+            lifecycleManager.registerService(it, dependencies)
             eventBus.addListener(it)
         }
     }
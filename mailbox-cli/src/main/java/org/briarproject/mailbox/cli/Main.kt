@@ -25,14 +25,23 @@ import com.github.ajalt.clikt.core.CliktCommand
 import com.github.ajalt.clikt.parameters.options.counted
 import com.github.ajalt.clikt.parameters.options.flag
 import com.github.ajalt.clikt.parameters.options.option
+import com.github.ajalt.clikt.parameters.types.int
 import org.briarproject.mailbox.core.system.InvalidIdException
+import org.briarproject.mailbox.core.util.LogUtils.info
 import org.briarproject.mailbox.lib.Mailbox
 import org.slf4j.LoggerFactory.getLogger
+import java.util.Timer
+import java.util.concurrent.TimeUnit.SECONDS
+import kotlin.concurrent.fixedRateTimer
 
 class Main : CliktCommand(
     name = "briar-mailbox",
     help = "Command line interface for the Briar Mailbox"
 ) {
+    companion object {
+        private val LOG = getLogger(Main::class.java)
+    }
+
     private val wipe by option(
         "--wipe", help = "Deletes entire mailbox, will require new setup",
     ).flag(default = false)
@@ -49,6 +58,12 @@ class Main : CliktCommand(
         "--verbose", "-v", help = "Print verbose log messages"
     ).counted()
     private val setupToken: String? by option("--setup-token", hidden = true)
+    private val dbStatsInterval: Int? by option(
+        "--db-stats", help = "Log database statistics every given number of seconds"
+    ).int()
+
+    @Volatile
+    private var dbStatsTimer: Timer? = null
 
     override fun run() {
         // logging
@@ -67,6 +82,10 @@ class Main : CliktCommand(
         // Logback level ordering: TRACE < DEBUG < INFO < WARN
         val level = if (levelNamed.isGreaterOrEqual(levelVerbose)) levelVerbose else levelNamed
         (getLogger(Logger.ROOT_LOGGER_NAME) as Logger).level = level
+        // The statistics get logged at info level, so they need to show up when requested
+        if (dbStatsInterval != null && level.isGreaterOrEqual(Level.WARN)) {
+            (LOG as Logger).level = Level.INFO
+        }
 
         getLogger(this.javaClass).debug("Hello Mailbox")
         println("Hello Mailbox")
@@ -84,6 +103,8 @@ class Main : CliktCommand(
     private fun startLifecycle(mailbox: Mailbox) {
         Runtime.getRuntime().addShutdownHook(
             Thread {
+                // Stop logging statistics of a database that is about to be closed
+                dbStatsTimer?.cancel()
                 mailbox.stopLifecycle(false)
                 mailbox.waitForShutdown()
             }
@@ -91,6 +112,13 @@ class Main : CliktCommand(
 
         mailbox.startLifecycle()
 
+        dbStatsInterval?.let { seconds ->
+            val period = SECONDS.toMillis(seconds.coerceAtLeast(1).toLong())
+            dbStatsTimer = fixedRateTimer("DatabaseStats", daemon = true, period = period) {
+                logDatabaseStats(mailbox)
+            }
+        }
+
         if (setupToken != null) {
             try {
                 mailbox.setSetupToken(setupToken!!)
@@ -121,6 +149,23 @@ class Main : CliktCommand(
         }
     }
 
+    private fun logDatabaseStats(mailbox: Mailbox) {
+        val stats = mailbox.getDatabaseStats()
+        val pool = stats.connectionPool
+        LOG.info {
+            "Database statistics:\n" +
+                "  read lock wait:     ${stats.readLockWait}\n" +
+                "  write lock wait:    ${stats.writeLockWait}\n" +
+                "  read transactions:  ${stats.readTransactions}\n" +
+                "  write transactions: ${stats.writeTransactions}\n" +
+                "  compaction:         ${stats.compaction}\n" +
+                "  commits: ${stats.commits}, aborts: ${stats.aborts}\n" +
+                "  connections: ${pool.open} open, ${pool.idle} idle, ${pool.max} max, " +
+                "${stats.connectionCheckouts} checkouts, " +
+                "${pool.waits} waits (${pool.waitTimeMs} ms)"
+        }
+    }
+
 }
 
 fun main(args: Array<String>) = Main().main(args)
@@ -19,6 +19,7 @@
 
 package org.briarproject.mailbox.core
 
+import org.briarproject.mailbox.core.db.DatabaseCompactor
 import org.briarproject.mailbox.core.files.StaleFileDeletionScheduler
 import org.briarproject.mailbox.core.server.WebServerManager
 import javax.inject.Inject
@@ -27,4 +28,5 @@ import javax.inject.Inject
 class CoreEagerSingletons @Inject constructor(
     val webServerManager: WebServerManager,
     val staleFileDeletionScheduler: StaleFileDeletionScheduler,
+    val databaseCompactor: DatabaseCompactor,
 )
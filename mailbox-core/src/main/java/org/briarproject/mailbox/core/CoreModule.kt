@@ -23,6 +23,7 @@ import dagger.Module
 import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.components.SingletonComponent
+import org.briarproject.mailbox.core.db.DatabaseCompactorModule
 import org.briarproject.mailbox.core.db.DatabaseModule
 import org.briarproject.mailbox.core.event.EventModule
 import org.briarproject.mailbox.core.files.FileModule
@@ -40,6 +41,7 @@ import javax.inject.Singleton
         EventModule::class,
         LifecycleModule::class,
         DatabaseModule::class,
+        DatabaseCompactorModule::class,
         FileModule::class,
         SetupModule::class,
         WebServerModule::class,
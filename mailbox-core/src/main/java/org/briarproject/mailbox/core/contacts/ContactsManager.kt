@@ -56,7 +56,7 @@ class ContactsManager @Inject constructor(
     suspend fun listContacts(call: ApplicationCall) {
         authManager.assertIsOwner(call.principal())
 
-        val contacts = db.read { txn ->
+        val contacts = db.readOnDispatcher { txn ->
             db.getContacts(txn)
         }
         val contactIds = contacts.map { contact -> contact.contactId }
@@ -89,11 +89,12 @@ class ContactsManager @Inject constructor(
         randomIdManager.assertIsRandomId(c.inboxId)
         randomIdManager.assertIsRandomId(c.outboxId)
 
-        val status = db.write { txn ->
+        val status = db.writeOnDispatcher { txn ->
             if (db.getContact(txn, c.contactId) != null) {
                 Conflict
             } else {
                 db.addContact(txn, c)
+                txn.attach { authManager.onContactAdded(c) }
                 Created
             }
         }
@@ -106,7 +107,7 @@ class ContactsManager @Inject constructor(
      * [paramContactId] is the integer contact ID the contact was added with.
      * Returns 200 (OK) when deletion was successful.
      */
-    fun deleteContact(call: ApplicationCall, paramContactId: String) {
+    suspend fun deleteContact(call: ApplicationCall, paramContactId: String) {
         authManager.assertIsOwner(call.principal())
 
         val contactId = try {
@@ -115,15 +116,13 @@ class ContactsManager @Inject constructor(
             throw BadRequestException("Invalid value for parameter contactId")
         }
 
-        val status = db.write { txn ->
-            if (db.getContact(txn, contactId) == null) {
-                NotFound
-            } else {
+        val removed = db.writeOnDispatcher { txn ->
+            db.getContact(txn, contactId)?.also {
                 db.removeContact(txn, contactId)
-                OK
+                txn.attach { authManager.onContactRemoved(it) }
             }
         }
-        call.response.status(status)
+        call.response.status(if (removed == null) NotFound else OK)
     }
 
 }
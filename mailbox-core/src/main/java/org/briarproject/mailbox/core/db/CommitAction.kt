@@ -0,0 +1,57 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+import org.briarproject.mailbox.core.event.Event
+import org.briarproject.mailbox.core.event.EventBus
+import org.briarproject.mailbox.core.util.LogUtils.logException
+import org.slf4j.Logger
+
+/**
+ * An action attached to a [Transaction] that runs once the transaction has been committed.
+ */
+internal sealed class CommitAction {
+
+    class EventAction(val event: Event) : CommitAction()
+
+    class TaskAction(val task: () -> Unit) : CommitAction()
+
+    internal companion object {
+        /**
+         * Runs the actions attached to the given committed transaction in the order they were
+         * attached. Events are handed to the [EventBus], which delivers them in the same order.
+         * A failing task is logged and doesn't stop the remaining actions, as the transaction
+         * has already been committed.
+         */
+        fun runActions(logger: Logger, eventBus: EventBus, txn: Transaction) {
+            check(txn.isCommitted)
+            for (a in txn.commitActions) {
+                when (a) {
+                    is EventAction -> eventBus.broadcast(a.event)
+                    is TaskAction -> try {
+                        a.task()
+                    } catch (e: Exception) {
+                        logException(logger, e) { "Error running commit action" }
+                    }
+                }
+            }
+        }
+    }
+}
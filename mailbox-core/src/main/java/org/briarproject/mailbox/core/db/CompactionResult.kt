@@ -0,0 +1,35 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+data class CompactionResult(
+    /**
+     * The size of the database files in bytes before compacting.
+     */
+    val sizeBefore: Long,
+    /**
+     * The size of the database files in bytes after compacting.
+     */
+    val sizeAfter: Long,
+    /**
+     * How long compacting took in milliseconds.
+     */
+    val durationMs: Long,
+)
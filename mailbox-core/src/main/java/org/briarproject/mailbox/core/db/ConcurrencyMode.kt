@@ -0,0 +1,35 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+enum class ConcurrencyMode {
+    /**
+     * Either one writable transaction or any number of read-only transactions can be in progress
+     * at the same time. Writers wait for all readers to finish and block new readers.
+     */
+    EXCLUSIVE,
+
+    /**
+     * One writable transaction and any number of read-only transactions can be in progress
+     * at the same time. Readers see the state of the database as of the last commit, relying
+     * on the database's multi-version concurrency control, and never wait for writers.
+     */
+    MVCC,
+}
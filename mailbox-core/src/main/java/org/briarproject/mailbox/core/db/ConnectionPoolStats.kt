@@ -0,0 +1,46 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+/**
+ * A snapshot of the state of the database's connection pool.
+ */
+data class ConnectionPoolStats(
+    /**
+     * The number of connections that are currently open, including idle ones.
+     */
+    val open: Int,
+    /**
+     * The number of open connections that are currently not used by any transaction.
+     */
+    val idle: Int,
+    /**
+     * The maximum number of connections the pool will open.
+     */
+    val max: Int,
+    /**
+     * The number of times a transaction had to wait for a connection to become available.
+     */
+    val waits: Long,
+    /**
+     * The total time in milliseconds that transactions have waited for a connection.
+     */
+    val waitTimeMs: Long,
+)
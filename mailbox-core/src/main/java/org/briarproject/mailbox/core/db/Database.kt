@@ -40,6 +40,41 @@ interface Database : TransactionManager {
     @Throws(DbException::class)
     fun dropAllTablesAndClose()
 
+    /**
+     * Returns true if the database should be compacted, either because
+     * [DatabaseConstants.MAX_COMPACTION_INTERVAL_MS] have passed since it was last compacted
+     * or because a migration was applied when opening it.
+     * Doesn't start a transaction, so it doesn't affect [getIdleTime].
+     */
+    @Throws(DbException::class)
+    fun isCompactionDue(): Boolean
+
+    /**
+     * Returns the number of milliseconds since the last transaction ended,
+     * or 0 if a transaction is in progress.
+     */
+    fun getIdleTime(): Long
+
+    /**
+     * Compacts the database without closing it.
+     * All transactions wait while the database files are being compacted, so this should only
+     * be called while the database is idle, see [getIdleTime].
+     */
+    @Throws(DbException::class)
+    fun compact(): CompactionResult
+
+    /**
+     * Returns true if opening the database left maintenance work that wasn't needed for using
+     * the database, i.e. the deferred work of migrations or compacting after migrating.
+     */
+    fun isMaintenanceDue(): Boolean
+
+    /**
+     * Does the maintenance work left by opening the database while it is in use.
+     */
+    @Throws(DbException::class)
+    fun runMaintenance()
+
     @Throws(DbException::class)
     fun getSettings(txn: Transaction, namespace: String): Settings
 
@@ -65,4 +100,16 @@ interface Database : TransactionManager {
     @Throws(DbException::class)
     fun getContactWithToken(txn: Transaction, token: String): Contact?
 
+    /**
+     * Returns the current state of the connection pool and how long transactions have waited
+     * for a connection so far.
+     */
+    fun getConnectionPoolStats(): ConnectionPoolStats
+
+    /**
+     * Returns counters and latencies of transactions, lock waits and compactions
+     * since the database was created.
+     */
+    fun getStats(): DatabaseStats
+
 }
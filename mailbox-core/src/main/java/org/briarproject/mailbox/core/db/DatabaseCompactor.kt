@@ -0,0 +1,103 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+import org.briarproject.mailbox.core.lifecycle.IoExecutor
+import org.briarproject.mailbox.core.lifecycle.Service
+import org.briarproject.mailbox.core.system.TaskScheduler
+import org.briarproject.mailbox.core.util.LogUtils.debug
+import org.briarproject.mailbox.core.util.LogUtils.logException
+import org.slf4j.LoggerFactory.getLogger
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.MINUTES
+import javax.inject.Inject
+
+/**
+ * Check whether the database needs compacting after this initial delay has passed.
+ */
+private val COMPACTION_CHECK_DELAY = MINUTES.toMillis(5)
+
+/**
+ * Check again after this many milliseconds have passed.
+ */
+private val COMPACTION_CHECK_INTERVAL = MINUTES.toMillis(15)
+
+/**
+ * Only compact the database if no transaction has run for this many milliseconds.
+ */
+private val COMPACTION_MIN_IDLE_TIME = MINUTES.toMillis(1)
+
+interface DatabaseCompactor : Service
+
+/**
+ * Compacts the database in the background when it is due and the database is idle,
+ * so compacting never delays starting the lifecycle.
+ */
+class DatabaseCompactorImpl internal constructor(
+    private val db: Database,
+    private val taskScheduler: TaskScheduler,
+    private val ioExecutor: Executor,
+    private val minIdleTime: Long,
+) : DatabaseCompactor {
+
+    @Inject
+    constructor(
+        db: Database,
+        taskScheduler: TaskScheduler,
+        @IoExecutor ioExecutor: Executor,
+    ) : this(db, taskScheduler, ioExecutor, COMPACTION_MIN_IDLE_TIME)
+
+    companion object {
+        private val LOG = getLogger(DatabaseCompactor::class.java)
+    }
+
+    private var task: TaskScheduler.Cancellable? = null
+
+    override fun startService() {
+        task = taskScheduler.scheduleWithFixedDelay(
+            task = this::compactIfDueAndIdle,
+            executor = ioExecutor,
+            delay = COMPACTION_CHECK_DELAY,
+            interval = COMPACTION_CHECK_INTERVAL,
+            unit = MILLISECONDS,
+        )
+    }
+
+    override fun stopService() {
+        task?.cancel()
+    }
+
+    private fun compactIfDueAndIdle() {
+        try {
+            if (!db.isCompactionDue()) return
+            val idleTime = db.getIdleTime()
+            if (idleTime < minIdleTime) {
+                LOG.debug { "Compaction is due, but database was idle for only $idleTime ms" }
+                return
+            }
+            db.compact()
+        } catch (e: DbClosedException) {
+            // the lifecycle is stopping
+        } catch (e: DbException) {
+            logException(LOG, e) { "Error while compacting database" }
+        }
+    }
+}
@@ -28,4 +28,53 @@ interface DatabaseConfig {
      */
     fun getDatabaseDirectory(): File
 
+    /**
+     * Returns the implementation used for storing the data.
+     */
+    fun getDatabaseBackend(): DatabaseBackend = DatabaseBackend.H2
+
+    /**
+     * Returns true if maintenance work that isn't needed for using the database, see
+     * [Database.runMaintenance], should only happen after services have been started,
+     * or false if it should happen before starting services.
+     */
+    fun isMaintenanceDeferred(): Boolean = true
+
+    /**
+     * Returns the number of connections that get opened when opening the database
+     * and that are kept open until the database is closed.
+     */
+    fun getMinConnections(): Int = 2
+
+    /**
+     * Returns the maximum number of connections that can be open at the same time.
+     * Transactions that need a connection while this many are in use wait for one to be returned.
+     */
+    fun getMaxConnections(): Int = 8
+
+    /**
+     * Returns how transactions may run concurrently. [ConcurrencyMode.MVCC] needs to be opted
+     * into, so existing databases keep being used the way they always were.
+     */
+    fun getConcurrencyMode(): ConcurrencyMode = ConcurrencyMode.EXCLUSIVE
+
+    /**
+     * Returns how many milliseconds writes queued by [TransactionManager.writeAsync] wait
+     * for other writes to be committed together with.
+     */
+    fun getGroupCommitWindowMs(): Long = 10
+
+    /**
+     * Returns the maximum number of queued writes committed in a single transaction.
+     * Once this many writes are queued, they get committed without waiting any longer.
+     */
+    fun getMaxGroupCommitSize(): Int = 64
+
+    /**
+     * Returns the minimum time in milliseconds between storing two owner connection times.
+     * Owner connections in between are only kept in memory, the latest one gets stored when the
+     * interval has passed or when services are stopped.
+     */
+    fun getOwnerConnectionPersistIntervalMs(): Long = 5 * 60 * 1000L
+
 }
@@ -45,9 +45,16 @@ interface DatabaseConstants {
         const val LAST_COMPACTED_KEY = "lastCompacted"
 
         /**
-         * The maximum time between database compactions in milliseconds. When the
-         * database is opened it will be compacted if more than this amount of time
-         * has passed since the last compaction.
+         * The [Settings] key under which the flag is stored indicating
+         * whether the database should be compacted regardless of when it
+         * was compacted last.
+         */
+        const val COMPACTION_REQUESTED_KEY = "compactionRequested"
+
+        /**
+         * The maximum time between database compactions in milliseconds. The
+         * database will be compacted in the background when it is idle and more
+         * than this amount of time has passed since the last compaction.
          */
         var MAX_COMPACTION_INTERVAL_MS = DAYS.toMillis(30)
 
@@ -57,6 +64,12 @@ interface DatabaseConstants {
          */
         const val DIRTY_KEY = "dirty"
 
+        /**
+         * The [Settings] key under which the end versions of migrations are stored
+         * whose deferred work hasn't been done yet.
+         */
+        const val DEFERRED_MIGRATIONS_KEY = "deferredMigrations"
+
     }
 
 }
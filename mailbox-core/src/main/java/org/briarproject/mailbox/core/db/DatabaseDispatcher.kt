@@ -0,0 +1,64 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.ExecutorCoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import java.util.concurrent.Executors
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * Provides the [TransactionManager.dispatcher] of a database, backed by a pool of at most
+ * [threads] threads that only exists while the database is open.
+ */
+@ThreadSafe
+internal class DatabaseDispatcher(private val threads: Int) {
+
+    @Volatile
+    private var dispatcher: ExecutorCoroutineDispatcher? = null
+
+    /**
+     * Returns the dispatcher.
+     *
+     * @throws DbClosedException if the database is closed.
+     */
+    fun get(): CoroutineDispatcher = dispatcher ?: throw DbClosedException()
+
+    /**
+     * Call this when opening the database.
+     */
+    fun open() {
+        if (dispatcher != null) return
+        dispatcher = Executors.newFixedThreadPool(threads) { r ->
+            Thread(r, "DatabaseDispatcher").apply { isDaemon = true }
+        }.asCoroutineDispatcher()
+    }
+
+    /**
+     * Call this when closing the database, once no more transactions are running.
+     * Shuts down the threads of the dispatcher.
+     */
+    fun close() {
+        val d = dispatcher ?: return
+        dispatcher = null
+        d.close()
+    }
+}
@@ -23,6 +23,7 @@ import dagger.Module
 import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.components.SingletonComponent
+import org.briarproject.mailbox.core.event.EventBus
 import org.briarproject.mailbox.core.system.Clock
 import javax.inject.Singleton
 
@@ -32,8 +33,11 @@ internal class DatabaseModule {
 
     @Provides
     @Singleton
-    fun provideDatabase(config: DatabaseConfig, clock: Clock): Database {
-        return H2Database(config, clock)
+    fun provideDatabase(config: DatabaseConfig, clock: Clock, eventBus: EventBus): Database {
+        return when (config.getDatabaseBackend()) {
+            DatabaseBackend.H2 -> H2Database(config, clock, eventBus)
+            DatabaseBackend.LOG -> LogDatabase(config, eventBus)
+        }
     }
 
     @Provides
@@ -0,0 +1,61 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+/**
+ * Counters and latencies collected by the database since it was created.
+ */
+data class DatabaseStats(
+    /**
+     * How long read-only transactions waited for the transaction lock.
+     */
+    val readLockWait: LatencyStats,
+    /**
+     * How long writable transactions waited for the transaction lock,
+     * i.e. the write lock in [ConcurrencyMode.EXCLUSIVE] or the writer lock in
+     * [ConcurrencyMode.MVCC].
+     */
+    val writeLockWait: LatencyStats,
+    /**
+     * How long read-only transactions took from acquiring the lock until they ended.
+     */
+    val readTransactions: LatencyStats,
+    /**
+     * How long writable transactions took from acquiring the lock until they ended.
+     */
+    val writeTransactions: LatencyStats,
+    /**
+     * The number of committed transactions.
+     */
+    val commits: Long,
+    /**
+     * The number of aborted transactions.
+     */
+    val aborts: Long,
+    /**
+     * The number of times a transaction took a connection from the pool or opened a new one.
+     */
+    val connectionCheckouts: Long,
+    /**
+     * How long compacting the database took.
+     */
+    val compaction: LatencyStats,
+    val connectionPool: ConnectionPoolStats,
+)
@@ -23,6 +23,8 @@ open class DbException : Exception {
 
     constructor()
 
+    constructor(message: String) : super(message)
+
     constructor(t: Throwable?) : super(t)
 
 }
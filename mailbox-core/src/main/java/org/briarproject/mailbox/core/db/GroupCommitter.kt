@@ -0,0 +1,166 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+import kotlinx.coroutines.Deferred
+import org.briarproject.mailbox.core.util.LogUtils.logDuration
+import org.briarproject.mailbox.core.util.LogUtils.now
+import org.slf4j.LoggerFactory.getLogger
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.ReentrantLock
+import javax.annotation.concurrent.ThreadSafe
+import kotlin.concurrent.withLock
+
+/**
+ * Runs a task so that its changes to the given transaction can be undone without affecting
+ * the rest of the transaction. The changes are kept if the task returns true.
+ * Returns the task's result.
+ */
+internal typealias IsolatedRunner = (Transaction, (Transaction) -> Boolean) -> Boolean
+
+/**
+ * Implements [TransactionManager.writeAsync] for a database: queues writes and commits them in
+ * groups, either once [DatabaseConfig.getMaxGroupCommitSize] writes are queued or after
+ * [DatabaseConfig.getGroupCommitWindowMs] have passed.
+ *
+ * All writes of a group run in one transaction of the given [db]. Each write runs via
+ * [runIsolated], so a failing write gets undone without affecting the others.
+ *
+ * Writes get committed in the background between [start] and [stop],
+ * which the database calls when it gets opened and closed.
+ */
+@ThreadSafe
+internal class GroupCommitter(
+    config: DatabaseConfig,
+    private val db: TransactionManager,
+    private val runIsolated: IsolatedRunner,
+) {
+
+    private companion object {
+        private val LOG = getLogger(GroupCommitter::class.java)
+    }
+
+    private val groupCommitWindowMs = config.getGroupCommitWindowMs()
+    private val maxGroupCommitSize = config.getMaxGroupCommitSize().also {
+        require(it >= 1) { "A group commit must contain at least one write" }
+    }
+
+    /**
+     * Writes queued by [enqueue] that haven't been committed yet.
+     */
+    private val queuedWrites = LinkedBlockingQueue<QueuedWrite<*>>()
+
+    /**
+     * Held while committing queued writes, so they get committed in the order they were queued.
+     */
+    private val groupCommitLock = ReentrantLock()
+
+    private val groupCommitScheduled = AtomicBoolean(false)
+
+    /**
+     * Runs the group commits while the database is open, null otherwise.
+     */
+    @Volatile
+    private var groupCommitExecutor: ScheduledExecutorService? = null
+
+    /**
+     * Starts committing queued writes in the background.
+     */
+    fun start() {
+        if (groupCommitExecutor != null) return
+        groupCommitScheduled.set(false)
+        groupCommitExecutor = Executors.newSingleThreadScheduledExecutor { r ->
+            Thread(r, "DatabaseGroupCommit").apply { isDaemon = true }
+        }
+    }
+
+    /**
+     * Stops the background thread and commits all writes queued so far.
+     * Writes queued afterwards fail with a [DbClosedException] until [start] gets called again.
+     */
+    fun stop() {
+        val executor = groupCommitExecutor ?: return
+        groupCommitExecutor = null
+        // Commits that were already scheduled find nothing left to do after the one below
+        executor.shutdown()
+        commitQueuedWrites()
+    }
+
+    fun <R> enqueue(task: (Transaction) -> R): Deferred<R> {
+        val write = QueuedWrite(task)
+        queuedWrites.add(write)
+        try {
+            val executor = groupCommitExecutor ?: throw RejectedExecutionException()
+            if (queuedWrites.size >= maxGroupCommitSize) {
+                executor.execute(::commitQueuedWrites)
+            } else if (groupCommitScheduled.compareAndSet(false, true)) {
+                executor.schedule({
+                    groupCommitScheduled.set(false)
+                    commitQueuedWrites()
+                }, groupCommitWindowMs, MILLISECONDS)
+            }
+        } catch (e: RejectedExecutionException) {
+            // The database is closed or closing. If stop() has committed the write already,
+            // it can't be removed anymore and mustn't fail.
+            groupCommitScheduled.set(false)
+            if (queuedWrites.remove(write)) write.fail(DbClosedException())
+        }
+        return write.result
+    }
+
+    /**
+     * Commits all queued writes in transactions of at most [maxGroupCommitSize] writes each.
+     * Returns when all writes queued before calling this have been committed.
+     */
+    private fun commitQueuedWrites() {
+        groupCommitLock.withLock {
+            while (true) {
+                val group = ArrayList<QueuedWrite<*>>()
+                queuedWrites.drainTo(group, maxGroupCommitSize)
+                if (group.isEmpty()) return
+                commitGroup(group)
+            }
+        }
+    }
+
+    private fun commitGroup(group: List<QueuedWrite<*>>) {
+        val start = now()
+        try {
+            db.write { txn ->
+                for (w in group) {
+                    // A failing write must not affect the others in the same group
+                    val actions = txn.commitActions.size
+                    if (!runIsolated(txn, w::run)) txn.discardActionsAfter(actions)
+                }
+            }
+        } catch (e: Exception) {
+            group.forEach { it.fail(e) }
+            return
+        }
+        logDuration(LOG, start) { "Committing ${group.size} queued writes" }
+        // Only complete the results once the writes are durable
+        group.forEach { it.complete() }
+    }
+}
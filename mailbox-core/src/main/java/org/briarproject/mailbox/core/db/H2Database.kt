@@ -20,6 +20,7 @@
 package org.briarproject.mailbox.core.db
 
 import org.briarproject.mailbox.core.db.JdbcUtils.tryToClose
+import org.briarproject.mailbox.core.event.EventBus
 import org.briarproject.mailbox.core.system.Clock
 import org.briarproject.mailbox.core.util.IoUtils.isNonEmptyDirectory
 import org.briarproject.mailbox.core.util.LogUtils.info
@@ -37,7 +38,8 @@ import kotlin.concurrent.withLock
 open class H2Database(
     private val config: DatabaseConfig,
     clock: Clock,
-) : JdbcDatabase(dbTypes, clock) {
+    eventBus: EventBus,
+) : JdbcDatabase(dbTypes, config, clock, eventBus) {
 
     internal companion object {
         private val LOG = LoggerFactory.getLogger(H2Database::class.java)
@@ -52,8 +54,16 @@ open class H2Database(
         )
     }
 
+    override val mergeSettingSql = """
+                    MERGE INTO settings (namespace, settingKey, value)
+                           KEY (namespace, settingKey)
+                           VALUES (?, ?, ?)
+    """.trimIndent()
+
     private val dbPath: String get() = File(config.getDatabaseDirectory(), "db").absolutePath
-    private val url: String = ("jdbc:h2:split:$dbPath;WRITE_DELAY=0")
+    private val url: String = "jdbc:h2:split:$dbPath;WRITE_DELAY=0" +
+        // Readers can only run alongside a writer if they don't wait for its row locks
+        if (config.getConcurrencyMode() == ConcurrencyMode.MVCC) ";MVCC=TRUE" else ""
 
     override fun open(listener: MigrationListener?): Boolean {
         val dir = config.getDatabaseDirectory()
@@ -86,6 +96,8 @@ open class H2Database(
     }
 
     override fun close() {
+        // Transactions must not be started while holding the lock
+        stopGroupCommits()
         connectionsLock.withLock {
             // This extra check is mainly added for tests where we might have closed the database
             // already by resetting the database after each test and then the lifecycle manager
@@ -115,13 +127,13 @@ open class H2Database(
         return DriverManager.getConnection(url, props)
     }
 
-    override fun compactAndClose() {
+    override fun compactWhileQuiescent() {
         var c: Connection? = null
         var s: Statement? = null
         try {
             c = createConnection()
-            closeAllConnections()
             s = c.createStatement()
+            // Closes the database after compacting it, the next connection reopens it
             s.execute("SHUTDOWN COMPACT")
             s.close()
             c.close()
@@ -132,4 +144,8 @@ open class H2Database(
         }
     }
 
+    override fun getDatabaseSize(): Long {
+        return config.getDatabaseDirectory().walk().filter { it.isFile }.sumOf { it.length() }
+    }
+
 }
@@ -19,19 +19,28 @@
 
 package org.briarproject.mailbox.core.db
 
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Deferred
 import org.briarproject.mailbox.core.contacts.Contact
+import org.briarproject.mailbox.core.db.CommitAction.Companion.runActions
+import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.COMPACTION_REQUESTED_KEY
 import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.DB_SETTINGS_NAMESPACE
+import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.DEFERRED_MIGRATIONS_KEY
 import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.DIRTY_KEY
 import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.LAST_COMPACTED_KEY
 import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.MAX_COMPACTION_INTERVAL_MS
 import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.SCHEMA_VERSION_KEY
 import org.briarproject.mailbox.core.db.JdbcUtils.tryToClose
+import org.briarproject.mailbox.core.event.EventBus
 import org.briarproject.mailbox.core.settings.Settings
 import org.briarproject.mailbox.core.system.Clock
+import org.briarproject.mailbox.core.system.toHex
+import org.briarproject.mailbox.core.util.LogUtils.debug
 import org.briarproject.mailbox.core.util.LogUtils.info
 import org.briarproject.mailbox.core.util.LogUtils.logDuration
 import org.briarproject.mailbox.core.util.LogUtils.logException
 import org.briarproject.mailbox.core.util.LogUtils.now
+import org.briarproject.mailbox.core.util.StringUtils.fromHexString
 import org.slf4j.LoggerFactory
 import java.sql.Connection
 import java.sql.PreparedStatement
@@ -39,19 +48,25 @@ import java.sql.ResultSet
 import java.sql.SQLException
 import java.sql.Statement
 import java.util.LinkedList
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
 import java.util.concurrent.locks.Lock
 import java.util.concurrent.locks.ReentrantLock
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import javax.annotation.concurrent.GuardedBy
 import kotlin.concurrent.withLock
 
-abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val clock: Clock) :
-    Database {
+abstract class JdbcDatabase(
+    private val dbTypes: DatabaseTypes,
+    config: DatabaseConfig,
+    private val clock: Clock,
+    private val eventBus: EventBus,
+) : Database {
 
     internal companion object {
 
         private val LOG = LoggerFactory.getLogger(JdbcDatabase::class.java)
-        const val CODE_SCHEMA_VERSION = 1
+        const val CODE_SCHEMA_VERSION = 2
 
         private val CREATE_SETTINGS = """
                     CREATE TABLE settings
@@ -64,21 +79,76 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         private val CREATE_CONTACTS = """
                     CREATE TABLE contacts
                            (contactId INT NOT NULL,
-                           token _STRING NOT NULL,
-                           inbox _STRING NOT NULL,
-                           outbox _STRING NOT NULL,
+                           token _SECRET NOT NULL,
+                           inbox _HASH NOT NULL,
+                           outbox _HASH NOT NULL,
                            PRIMARY KEY (contactId))
         """.trimIndent()
+
+        private const val INDEX_CONTACTS_BY_TOKEN =
+            "CREATE UNIQUE INDEX IF NOT EXISTS contactsByToken ON contacts (token)"
+
+        private const val INDEX_CONTACTS_BY_INBOX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS contactsByInbox ON contacts (inbox)"
+
+        private const val INDEX_CONTACTS_BY_OUTBOX =
+            "CREATE UNIQUE INDEX IF NOT EXISTS contactsByOutbox ON contacts (outbox)"
+
+        private val SELECT_SETTINGS = """
+                    SELECT settingKey, value FROM settings
+                           WHERE namespace = ?
+        """.trimIndent()
+
+        private val UPDATE_SETTING = """
+                    UPDATE settings SET value = ?
+                           WHERE namespace = ? AND settingKey = ?
+        """.trimIndent()
+
+        private val INSERT_SETTING = """
+                    INSERT INTO settings (namespace, settingKey, value)
+                           VALUES (?, ?, ?)
+        """.trimIndent()
+
+        private val INSERT_CONTACT = """
+                    INSERT INTO contacts (contactId, token, inbox, outbox)
+                           VALUES (?, ?, ?, ?)
+        """.trimIndent()
+
+        private val SELECT_CONTACT = """
+                    SELECT token, inbox, outbox FROM contacts
+                           WHERE contactId = ?
+        """.trimIndent()
+
+        private const val SELECT_CONTACTS = "SELECT contactId, token, inbox, outbox FROM contacts"
+
+        private const val DELETE_CONTACT = "DELETE FROM contacts WHERE contactId = ?"
+
+        private val SELECT_CONTACT_WITH_TOKEN = """
+                    SELECT contactId, inbox, outbox FROM contacts
+                           WHERE token = ?
+        """.trimIndent()
     }
 
+    private val concurrencyMode = config.getConcurrencyMode()
+
     /**
-     * This lock is used for making sure that either one writable or alternatively an arbitrary
-     * number of read-only transactions is in progress at the same time. It acts as a barrier
-     * that blocks threads that try to start a transaction that cannot currently be started
-     * because of that invariant.
+     * In [ConcurrencyMode.EXCLUSIVE], this lock is used for making sure that either one writable
+     * or alternatively an arbitrary number of read-only transactions is in progress at the same
+     * time. It acts as a barrier that blocks threads that try to start a transaction that cannot
+     * currently be started because of that invariant.
+     *
+     * In [ConcurrencyMode.MVCC], all transactions only acquire the read lock, so it is only used
+     * for detecting reentrant transactions.
      */
     private val transactionLock = ReentrantReadWriteLock(true)
 
+    /**
+     * In [ConcurrencyMode.MVCC], this lock makes sure that only one writable transaction
+     * is in progress at the same time, so writers never conflict with each other.
+     * Read-only transactions don't acquire it.
+     */
+    private val writerLock = ReentrantLock(true)
+
     /**
      * In the case of readers, multiple threads can be accessing the database simultaneously.
      * To synchronise access to shared fields, we use this lock.
@@ -91,15 +161,100 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
     @GuardedBy("connectionsLock")
     private val connections = LinkedList<Connection>()
 
+    /**
+     * The number of open connections, including those in [connections] and those currently
+     * being opened.
+     */
     @GuardedBy("connectionsLock")
     private var openConnections = 0
 
+    private val maxConnections = config.getMaxConnections().also {
+        require(it >= 1) { "At least one connection is needed" }
+    }
+    private val minConnections = config.getMinConnections().coerceIn(0, maxConnections)
+
+    @GuardedBy("connectionsLock")
+    private var connectionWaits = 0L
+
+    @GuardedBy("connectionsLock")
+    private var connectionWaitTimeMs = 0L
+
     @GuardedBy("connectionsLock")
     protected var closed = true
 
+    private val readLockWait = LatencyHistogram()
+    private val writeLockWait = LatencyHistogram()
+    private val readTransactions = LatencyHistogram()
+    private val writeTransactions = LatencyHistogram()
+    private val compactions = LatencyHistogram()
+    private val commits = LongAdder()
+    private val aborts = LongAdder()
+    private val connectionCheckouts = LongAdder()
+
+    /**
+     * The prepared statements of each pooled connection, keyed by their SQL.
+     * A connection and its statements are only used by one transaction at a time,
+     * so the maps of statements don't need to be thread-safe.
+     */
+    private val statements = ConcurrentHashMap<Connection, HashMap<String, PreparedStatement>>()
+
+    /**
+     * Snapshots of the committed settings of each namespace. They are never handed out directly,
+     * callers get their own copy.
+     */
+    private val settingsCache = ConcurrentHashMap<String, Settings>()
+
+    private val settingsCacheLock = Any()
+
+    /**
+     * Incremented whenever cached settings get invalidated, so a snapshot read before a commit
+     * doesn't get cached after the commit invalidated the namespace.
+     */
+    @GuardedBy("settingsCacheLock")
+    private var settingsCacheGeneration = 0L
+
+    /**
+     * An SQL statement that inserts or updates a single setting in one go, taking the namespace,
+     * key and value as parameters, or null if the database doesn't support it.
+     */
+    protected open val mergeSettingSql: String? = null
+
     @Volatile
     private var wasDirtyOnInitialisation = false
 
+    /**
+     * True if the database should be compacted regardless of when it was compacted last,
+     * as stored in the database settings.
+     */
+    @Volatile
+    private var compactionRequested = false
+
+    /**
+     * The time the database was last compacted, as stored in the database settings.
+     * Kept in memory, so checking whether compaction is due doesn't need a transaction,
+     * which would count as activity for [getIdleTime].
+     */
+    @Volatile
+    private var lastCompacted = 0L
+
+    /**
+     * The end versions of the migrations whose deferred work hasn't been done yet, in order.
+     */
+    @Volatile
+    private var deferredMigrations = emptyList<Int>()
+
+    @Volatile
+    private var lastTransactionEnded = now()
+
+    private val groupCommitter = GroupCommitter(config, this, ::runIsolated)
+
+    /**
+     * More threads than connections wouldn't help, they would just wait for a connection.
+     */
+    private val databaseDispatcher = DatabaseDispatcher(maxConnections)
+
+    override val dispatcher: CoroutineDispatcher get() = databaseDispatcher.get()
+
     /**
      * Returns true if the database already existed. It is not safe to call this method
      * concurrently with [dropAllTablesAndClose]
@@ -115,6 +270,8 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         connectionsLock.withLock {
             closed = false
         }
+        groupCommitter.start()
+        databaseDispatcher.open()
         // Check if we have the settings table to determine if we're reopening an existing database
         LOG.info { "checking for settings table" }
         val reopen = databaseHasSettingsTable()
@@ -122,36 +279,33 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
             if (reopen) "settings table found, reopening"
             else "settings table not found, not reopening"
         }
-        var compact = false
         write { txn ->
             val connection = txn.unbox()
-            compact = if (reopen) {
+            if (reopen) {
                 val s: Settings = getSettings(connection, DB_SETTINGS_NAMESPACE)
                 wasDirtyOnInitialisation = isDirty(s)
-                migrateSchema(connection, s, listener) || isCompactionDue(s)
+                deferredMigrations = getDeferredMigrations(s)
+                lastCompacted = s.getLong(LAST_COMPACTED_KEY, 0)
+                compactionRequested = s.getBoolean(COMPACTION_REQUESTED_KEY, false)
+                // Migrations can leave a lot of unused space behind, so compact soon, even if
+                // the database gets closed before compacting
+                if (migrateSchema(connection, s, listener)) {
+                    storeCompactionRequested(connection)
+                    compactionRequested = true
+                }
             } else {
                 wasDirtyOnInitialisation = false
+                deferredMigrations = emptyList()
+                compactionRequested = false
                 createTables(connection)
                 initialiseSettings(connection)
-                false
             }
             LOG.info { "db dirty? $wasDirtyOnInitialisation" }
             createIndexes(connection)
         }
-        // Compact the database if necessary
-        if (compact) {
-            listener?.onDatabaseCompaction()
-            val start: Long = now()
-            compactAndClose()
-            logDuration(LOG, start) { "Compacting database" }
-            // Allow the next transaction to reopen the DB
-            connectionsLock.withLock {
-                closed = false
-            }
-            write { txn ->
-                storeLastCompacted(txn.unbox())
-            }
-        }
+        // Settings might have been changed directly while opening
+        invalidateCachedSettings(null)
+        warmUpConnections()
         return reopen
     }
 
@@ -181,7 +335,7 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         if (dataSchemaVersion == CODE_SCHEMA_VERSION) return false
         if (CODE_SCHEMA_VERSION < dataSchemaVersion) throw DataTooNewException()
         // Apply any suitable migrations in order
-        for (m in getMigrations()) {
+        for (m in getMigrations(listener)) {
             val start: Int = m.startVersion
             val end: Int = m.endVersion
             if (start == dataSchemaVersion) {
@@ -192,6 +346,10 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
                 // Store the new schema version
                 storeSchemaVersion(connection, end)
                 dataSchemaVersion = end
+                if (m.hasDeferredWork) {
+                    deferredMigrations = deferredMigrations + end
+                    storeDeferredMigrations(connection, deferredMigrations)
+                }
             }
         }
         if (dataSchemaVersion != CODE_SCHEMA_VERSION) throw DataTooOldException()
@@ -199,17 +357,91 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
     }
 
     @Suppress("MemberVisibilityCanBePrivate") // visible for testing
-    internal fun getMigrations(): List<Migration<Connection>> {
+    internal fun getMigrations(listener: MigrationListener?): List<Migration<Connection>> {
         return listOf(
-            // Migration1_2(dbTypes),
+            Migration1_2(dbTypes, listener),
         )
     }
 
     @Throws(DbException::class, SQLException::class)
     protected abstract fun createConnection(): Connection
 
+    /**
+     * Compacts the database files while the database remains open. This gets called at a
+     * quiescent point: no transactions are running or can start, and no connections are open.
+     */
     @Throws(DbException::class)
-    protected abstract fun compactAndClose()
+    protected abstract fun compactWhileQuiescent()
+
+    /**
+     * Returns the total size of the database files in bytes.
+     */
+    protected abstract fun getDatabaseSize(): Long
+
+    override fun isCompactionDue(): Boolean {
+        if (compactionRequested) return true
+        val elapsed = clock.currentTimeMillis() - lastCompacted
+        LOG.debug { "$elapsed ms since last compaction" }
+        return elapsed > MAX_COMPACTION_INTERVAL_MS
+    }
+
+    override fun getIdleTime(): Long {
+        val busy = connectionsLock.withLock { openConnections > connections.size }
+        return if (busy) 0 else now() - lastTransactionEnded
+    }
+
+    @Throws(DbException::class)
+    override fun compact(): CompactionResult {
+        val sizeBefore = getDatabaseSize()
+        val start = now()
+        val startNanos = System.nanoTime()
+        // Compacting needs the database files to itself. Wait for all transactions to finish
+        // and keep new ones from starting, like an exclusive writer would, so transactions stall
+        // until compacting is done.
+        check(transactionLock.readHoldCount <= 0)
+        check(transactionLock.writeHoldCount <= 0)
+        transactionLock.writeLock().withLock {
+            try {
+                connectionsLock.withLock { closeIdleConnections() }
+            } catch (e: SQLException) {
+                throw DbException(e)
+            }
+            compactWhileQuiescent()
+        }
+        // The pool was emptied for compacting
+        warmUpConnections()
+        compactions.recordSince(startNanos)
+        val duration = now() - start
+        write { txn -> storeLastCompacted(txn) }
+        val result = CompactionResult(sizeBefore, getDatabaseSize(), duration)
+        LOG.info {
+            "Compacted database from ${result.sizeBefore} to ${result.sizeAfter} bytes " +
+                "in $duration ms"
+        }
+        return result
+    }
+
+    override fun isMaintenanceDue(): Boolean {
+        return compactionRequested || deferredMigrations.isNotEmpty()
+    }
+
+    @Throws(DbException::class)
+    override fun runMaintenance() {
+        val migrations = getMigrations(null)
+        for (version in deferredMigrations) {
+            val start = now()
+            write { txn ->
+                // A migration that is no longer known has nothing left to do
+                migrations.find { it.endVersion == version }?.migrateDeferred(txn.unbox())
+                val s = Settings()
+                s[DEFERRED_MIGRATIONS_KEY] = (deferredMigrations - version).joinToString(",")
+                mergeSettings(txn, s, DB_SETTINGS_NAMESPACE)
+            }
+            deferredMigrations = deferredMigrations - version
+            logDuration(LOG, start) { "Deferred work of migration to schema $version" }
+        }
+        if (compactionRequested) compact()
+    }
 
     /**
      * Starts a new transaction and returns an object representing it.
@@ -223,46 +455,161 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         // Don't allow reentrant locking
         check(transactionLock.readHoldCount <= 0)
         check(transactionLock.writeHoldCount <= 0)
+        check(!writerLock.isHeldByCurrentThread)
         val start = now()
+        val startNanos = System.nanoTime()
         if (readOnly) {
             transactionLock.readLock().lock()
+            readLockWait.recordSince(startNanos)
             logDuration(LOG, start) { "Waiting for read lock" }
+        } else if (concurrencyMode == ConcurrencyMode.MVCC) {
+            transactionLock.readLock().lock()
+            try {
+                writerLock.lock()
+            } catch (e: Throwable) {
+                transactionLock.readLock().unlock()
+                throw e
+            }
+            writeLockWait.recordSince(startNanos)
+            logDuration(LOG, start) { "Waiting for writer lock" }
         } else {
             transactionLock.writeLock().lock()
+            writeLockWait.recordSince(startNanos)
             logDuration(LOG, start) { "Waiting for write lock" }
         }
         return try {
             Transaction(startTransaction(), readOnly)
         } catch (e: Throwable) {
-            if (readOnly) {
-                transactionLock.readLock().unlock()
-            } else {
-                transactionLock.writeLock().unlock()
-            }
+            unlockTransaction(readOnly)
             throw e
         }
     }
 
-    private fun startTransaction(): Connection {
-        var connection = connectionsLock.withLock {
-            if (closed) throw DbClosedException()
-            connections.poll()
+    private fun unlockTransaction(readOnly: Boolean) {
+        if (readOnly) {
+            transactionLock.readLock().unlock()
+        } else if (concurrencyMode == ConcurrencyMode.MVCC) {
+            writerLock.unlock()
+            transactionLock.readLock().unlock()
+        } else {
+            transactionLock.writeLock().unlock()
         }
+    }
+
+    private fun startTransaction(): Connection {
+        connectionCheckouts.increment()
+        connectionsLock.withLock { pollOrReserveConnection() }?.let { return it }
+        // A slot for a new connection has been reserved for us, so open it
+        var success = false
         try {
-            if (connection == null) {
-                // Open a new connection
-                connection = createConnection()
-                connection.autoCommit = false
+            val connection = openConnection()
+            success = true
+            return connection
+        } catch (e: SQLException) {
+            throw DbException(e)
+        } finally {
+            if (!success) {
                 connectionsLock.withLock {
+                    openConnections--
+                    connectionsChanged.signalAll()
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an idle connection if there is one. Otherwise, if fewer than [maxConnections]
+     * are open, reserves a slot for a new connection and returns null, so the caller can open it
+     * without holding [connectionsLock]. If neither is possible, waits for a connection to be
+     * returned to the pool.
+     */
+    @GuardedBy("connectionsLock")
+    private fun pollOrReserveConnection(): Connection? {
+        val start = now()
+        var waited = false
+        try {
+            while (true) {
+                if (closed) throw DbClosedException()
+                val connection = connections.poll()
+                if (connection != null) return connection
+                if (openConnections < maxConnections) {
                     openConnections++
+                    return null
                 }
+                waited = true
+                connectionsChanged.awaitUninterruptibly()
+            }
+        } finally {
+            if (waited) {
+                val duration = now() - start
+                connectionWaits++
+                connectionWaitTimeMs += duration
+                LOG.debug { "Waited $duration ms for a connection" }
             }
-        } catch (e: SQLException) {
-            throw DbException(e)
         }
+    }
+
+    @Throws(DbException::class, SQLException::class)
+    private fun openConnection(): Connection {
+        val connection = createConnection()
+        connection.autoCommit = false
+        statements[connection] = HashMap()
         return connection
     }
 
+    /**
+     * Opens connections until [minConnections] are open, so the first transactions after
+     * opening the database don't need to wait for connections to be established.
+     */
+    private fun warmUpConnections() {
+        val start = now()
+        val toOpen = connectionsLock.withLock {
+            val n = (minConnections - openConnections).coerceAtLeast(0)
+            openConnections += n
+            n
+        }
+        for (i in 0 until toOpen) {
+            val connection = try {
+                openConnection()
+            } catch (e: Exception) {
+                // Not fatal, connections will be opened on demand
+                logException(LOG, e) { "Error while warming up connections" }
+                connectionsLock.withLock {
+                    openConnections -= toOpen - i
+                    connectionsChanged.signalAll()
+                }
+                return
+            }
+            connectionsLock.withLock {
+                connections.add(connection)
+                connectionsChanged.signalAll()
+            }
+        }
+        logDuration(LOG, start) { "Opening $toOpen connections" }
+    }
+
+    override fun getConnectionPoolStats(): ConnectionPoolStats = connectionsLock.withLock {
+        ConnectionPoolStats(
+            open = openConnections,
+            idle = connections.size,
+            max = maxConnections,
+            waits = connectionWaits,
+            waitTimeMs = connectionWaitTimeMs,
+        )
+    }
+
+    override fun getStats() = DatabaseStats(
+        readLockWait = readLockWait.getStats(),
+        writeLockWait = writeLockWait.getStats(),
+        readTransactions = readTransactions.getStats(),
+        writeTransactions = writeTransactions.getStats(),
+        commits = commits.sum(),
+        aborts = aborts.sum(),
+        connectionCheckouts = connectionCheckouts.sum(),
+        compaction = compactions.getStats(),
+        connectionPool = getConnectionPoolStats(),
+    )
+
     private fun abortTransaction(connection: Connection) {
         try {
             connection.rollback()
@@ -273,6 +620,7 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         } catch (e: SQLException) {
             // Try to close the connection
             logException(LOG, e) { "Error while aborting transaction" }
+            statements.remove(connection)
             tryToClose(connection, LOG)
             // Whatever happens, allow the database to close
             connectionsLock.withLock {
@@ -282,6 +630,11 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         }
     }
 
+    /**
+     * Commits and returns the connection to the pool. If committing fails, the connection is
+     * left to [abortTransaction].
+     */
+    @Throws(DbException::class)
     private fun commitTransaction(connection: Connection) {
         try {
             connection.commit()
@@ -299,9 +652,9 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         var interrupted = false
         connectionsLock.withLock {
             closed = true
-            for (c in connections) c.close()
-            openConnections -= connections.size
-            connections.clear()
+            // Wake up transactions waiting for a connection, so they fail
+            connectionsChanged.signalAll()
+            closeIdleConnections()
             while (openConnections > 0) {
                 try {
                     connectionsChanged.await()
@@ -309,14 +662,40 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
                     LOG.warn("Interrupted while closing connections")
                     interrupted = true
                 }
-                for (c in connections) c.close()
-                openConnections -= connections.size
-                connections.clear()
+                closeIdleConnections()
             }
         }
+        // No transactions are running anymore
+        databaseDispatcher.close()
         if (interrupted) Thread.currentThread().interrupt()
     }
 
+    @GuardedBy("connectionsLock")
+    @Throws(SQLException::class)
+    private fun closeIdleConnections() {
+        for (c in connections) {
+            // closing the connection also closes its statements
+            statements.remove(c)
+            c.close()
+        }
+        openConnections -= connections.size
+        connections.clear()
+    }
+
+    /**
+     * Returns a prepared statement for the given [sql] that gets reused by later transactions
+     * using the same pooled [connection]. The caller must not close the statement.
+     * Statements for connections that are not pooled get closed together with the connection.
+     */
+    @Throws(SQLException::class)
+    private fun prepareStatement(connection: Connection, sql: String): PreparedStatement {
+        val cache = statements[connection] ?: return connection.prepareStatement(sql)
+        val ps = cache.getOrPut(sql) { connection.prepareStatement(sql) }
+        // an earlier transaction might have failed before executing its batch
+        ps.clearBatch()
+        return ps
+    }
+
     private fun isDirty(s: Settings): Boolean {
         return s.getBoolean(DIRTY_KEY, false)
     }
@@ -328,13 +707,6 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         mergeSettings(connection, s, DB_SETTINGS_NAMESPACE)
     }
 
-    private fun isCompactionDue(s: Settings): Boolean {
-        val lastCompacted = s.getLong(LAST_COMPACTED_KEY, 0)
-        val elapsed = clock.currentTimeMillis() - lastCompacted
-        if (LOG.isInfoEnabled) LOG.info("$elapsed ms since last compaction")
-        return elapsed > MAX_COMPACTION_INTERVAL_MS
-    }
-
     @Throws(DbException::class)
     private fun storeSchemaVersion(connection: Connection, version: Int) {
         val s = Settings()
@@ -342,18 +714,44 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         mergeSettings(connection, s, DB_SETTINGS_NAMESPACE)
     }
 
+    private fun getDeferredMigrations(s: Settings): List<Int> {
+        val versions = s[DEFERRED_MIGRATIONS_KEY] ?: return emptyList()
+        return versions.split(",").map { it.toInt() }
+    }
+
+    @Throws(DbException::class)
+    private fun storeDeferredMigrations(connection: Connection, versions: List<Int>) {
+        val s = Settings()
+        s[DEFERRED_MIGRATIONS_KEY] = versions.joinToString(",")
+        mergeSettings(connection, s, DB_SETTINGS_NAMESPACE)
+    }
+
+    @Throws(DbException::class)
+    private fun storeLastCompacted(txn: Transaction) {
+        val time = clock.currentTimeMillis()
+        val s = Settings()
+        s.putLong(LAST_COMPACTED_KEY, time)
+        s.putBoolean(COMPACTION_REQUESTED_KEY, false)
+        mergeSettings(txn, s, DB_SETTINGS_NAMESPACE)
+        txn.attach {
+            lastCompacted = time
+            compactionRequested = false
+        }
+    }
+
     @Throws(DbException::class)
-    private fun storeLastCompacted(connection: Connection) {
+    private fun storeCompactionRequested(connection: Connection) {
         val s = Settings()
-        s.putLong(LAST_COMPACTED_KEY, clock.currentTimeMillis())
+        s.putBoolean(COMPACTION_REQUESTED_KEY, true)
         mergeSettings(connection, s, DB_SETTINGS_NAMESPACE)
     }
 
     @Throws(DbException::class)
     private fun initialiseSettings(connection: Connection) {
+        lastCompacted = clock.currentTimeMillis()
         val s = Settings()
         s.putInt(SCHEMA_VERSION_KEY, CODE_SCHEMA_VERSION)
-        s.putLong(LAST_COMPACTED_KEY, clock.currentTimeMillis())
+        s.putLong(LAST_COMPACTED_KEY, lastCompacted)
         mergeSettings(connection, s, DB_SETTINGS_NAMESPACE)
     }
 
@@ -376,7 +774,9 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
         var s: Statement? = null
         try {
             s = connection.createStatement()
-            // s.executeUpdate(INDEX_SOMETABLE_BY_SOMECOLUMN)
+            s.executeUpdate(INDEX_CONTACTS_BY_TOKEN)
+            s.executeUpdate(INDEX_CONTACTS_BY_INBOX)
+            s.executeUpdate(INDEX_CONTACTS_BY_OUTBOX)
             s.close()
         } catch (e: SQLException) {
             tryToClose(s, LOG)
@@ -386,6 +786,8 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
 
     @Throws(DbException::class)
     override fun dropAllTablesAndClose() {
+        // Transactions must not be started while holding the lock
+        stopGroupCommits()
         connectionsLock.withLock {
             if (closed) throw DbClosedException()
             var c: Connection? = null
@@ -399,6 +801,8 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
             } catch (e: SQLException) {
                 tryToClose(c, LOG)
                 throw DbException(e)
+            } finally {
+                invalidateCachedSettings(null)
             }
         }
     }
@@ -418,30 +822,41 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
     @Throws(DbException::class)
     override fun getSettings(txn: Transaction, namespace: String): Settings {
         val connection: Connection = txn.unbox()
-        return getSettings(connection, namespace)
+        // Writers might have merged settings that haven't been committed yet
+        if (!txn.isReadOnly) return getSettings(connection, namespace)
+        settingsCache[namespace]?.let { return it.copy() }
+        val generation = synchronized(settingsCacheLock) { settingsCacheGeneration }
+        val s = getSettings(connection, namespace)
+        synchronized(settingsCacheLock) {
+            if (generation == settingsCacheGeneration) settingsCache[namespace] = s.copy()
+        }
+        return s
+    }
+
+    /**
+     * Removes the given namespaces from the settings cache, or all namespaces if null.
+     */
+    private fun invalidateCachedSettings(namespaces: Collection<String>?) {
+        synchronized(settingsCacheLock) {
+            settingsCacheGeneration++
+            if (namespaces == null) settingsCache.clear()
+            else namespaces.forEach { settingsCache.remove(it) }
+        }
     }
 
     @Throws(DbException::class)
     private fun getSettings(connection: Connection, namespace: String): Settings {
-        var ps: PreparedStatement? = null
         var rs: ResultSet? = null
         return try {
-            val sql = """
-                SELECT settingKey, value FROM settings
-                       WHERE namespace = ?
-            """.trimIndent()
-
-            ps = connection.prepareStatement(sql)
+            val ps = prepareStatement(connection, SELECT_SETTINGS)
             ps.setString(1, namespace)
             rs = ps.executeQuery()
             val s = Settings()
             while (rs.next()) s[rs.getString(1)] = rs.getString(2)
             rs.close()
-            ps.close()
             s
         } catch (e: SQLException) {
             tryToClose(rs, LOG)
-            tryToClose(ps, LOG)
             throw DbException(e)
         }
     }
@@ -450,19 +865,19 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
     override fun mergeSettings(txn: Transaction, s: Settings, namespace: String) {
         val connection: Connection = txn.unbox()
         mergeSettings(connection, s, namespace)
+        txn.attach { invalidateCachedSettings(listOf(namespace)) }
     }
 
     @Throws(DbException::class)
     fun mergeSettings(connection: Connection, s: Settings, namespace: String) {
-        var ps: PreparedStatement? = null
+        val mergeSql = mergeSettingSql
+        if (mergeSql != null) {
+            upsertSettings(connection, mergeSql, s, namespace)
+            return
+        }
         try {
             // Update any settings that already exist
-            var sql = """
-                UPDATE settings SET value = ?
-                       WHERE namespace = ? AND settingKey = ?
-            """.trimIndent()
-
-            ps = connection.prepareStatement(sql)
+            var ps = prepareStatement(connection, UPDATE_SETTING)
             for ((key, value) in s) {
                 ps.setString(1, value)
                 ps.setString(2, namespace)
@@ -476,12 +891,7 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
                 if (rows > 1) throw DbStateException()
             }
             // Insert any settings that don't already exist
-            sql = """
-                INSERT INTO settings (namespace, settingKey, value)
-                            VALUES (?, ?, ?)
-            """.trimIndent()
-
-            ps = connection.prepareStatement(sql)
+            ps = prepareStatement(connection, INSERT_SETTING)
             var updateIndex = 0
             var inserted = 0
             for ((key, value) in s) {
@@ -497,9 +907,30 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
             batchAffected = ps.executeBatch()
             if (batchAffected.size != inserted) throw DbStateException()
             for (rows in batchAffected) if (rows != 1) throw DbStateException()
-            ps.close()
         } catch (e: SQLException) {
-            tryToClose(ps, LOG)
+            throw DbException(e)
+        }
+    }
+
+    @Throws(DbException::class)
+    private fun upsertSettings(
+        connection: Connection,
+        sql: String,
+        s: Settings,
+        namespace: String,
+    ) {
+        try {
+            val ps = prepareStatement(connection, sql)
+            for ((key, value) in s) {
+                ps.setString(1, namespace)
+                ps.setString(2, key)
+                ps.setString(3, value)
+                ps.addBatch()
+            }
+            val batchAffected = ps.executeBatch()
+            if (batchAffected.size != s.size) throw DbStateException()
+            for (rows in batchAffected) if (rows != 1) throw DbStateException()
+        } catch (e: SQLException) {
             throw DbException(e)
         }
     }
@@ -507,21 +938,15 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
     @Throws(DbException::class)
     override fun addContact(txn: Transaction, contact: Contact) {
         val connection: Connection = txn.unbox()
-        var ps: PreparedStatement? = null
         try {
-            val sql = """INSERT INTO contacts (contactId, token, inbox, outbox)
-                                VALUES (?, ?, ?, ?)
-            """.trimIndent()
-            ps = connection.prepareStatement(sql)
+            val ps = prepareStatement(connection, INSERT_CONTACT)
             ps.setInt(1, contact.contactId)
-            ps.setString(2, contact.token)
-            ps.setString(3, contact.inboxId)
-            ps.setString(4, contact.outboxId)
+            ps.setBytes(2, fromHexString(contact.token))
+            ps.setBytes(3, fromHexString(contact.inboxId))
+            ps.setBytes(4, fromHexString(contact.outboxId))
             val affected = ps.executeUpdate()
             if (affected != 1) throw DbStateException()
-            ps.close()
         } catch (e: SQLException) {
-            tryToClose(ps, LOG)
             throw DbException(e)
         }
     }
@@ -529,25 +954,22 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
     @Throws(DbException::class)
     override fun getContact(txn: Transaction, id: Int): Contact? {
         val connection: Connection = txn.unbox()
-        var ps: PreparedStatement? = null
         var rs: ResultSet? = null
         try {
-            val sql = """SELECT token, inbox, outbox FROM contacts
-                                WHERE contactId = ?
-            """.trimIndent()
-            ps = connection.prepareStatement(sql)
+            val ps = prepareStatement(connection, SELECT_CONTACT)
             ps.setInt(1, id)
             rs = ps.executeQuery()
-            if (!rs.next()) return null
-            val token = rs.getString(1)
-            val inboxId = rs.getString(2)
-            val outboxId = rs.getString(3)
+            if (!rs.next()) {
+                rs.close()
+                return null
+            }
+            val token = rs.getBytes(1).toHex()
+            val inboxId = rs.getBytes(2).toHex()
+            val outboxId = rs.getBytes(3).toHex()
             rs.close()
-            ps.close()
             return Contact(id, token, inboxId, outboxId)
         } catch (e: SQLException) {
             tryToClose(rs, LOG)
-            tryToClose(ps, LOG)
             throw DbException(e)
         }
     }
@@ -556,25 +978,21 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
     override fun getContacts(txn: Transaction): List<Contact> {
         val contacts = ArrayList<Contact>()
         val connection: Connection = txn.unbox()
-        var ps: PreparedStatement? = null
         var rs: ResultSet? = null
         try {
-            val sql = "SELECT contactId, token, inbox, outbox FROM contacts"
-            ps = connection.prepareStatement(sql)
+            val ps = prepareStatement(connection, SELECT_CONTACTS)
             rs = ps.executeQuery()
             while (rs.next()) {
                 val id = rs.getInt(1)
-                val token = rs.getString(2)
-                val inboxId = rs.getString(3)
-                val outboxId = rs.getString(4)
+                val token = rs.getBytes(2).toHex()
+                val inboxId = rs.getBytes(3).toHex()
+                val outboxId = rs.getBytes(4).toHex()
                 contacts.add(Contact(id, token, inboxId, outboxId))
             }
             rs.close()
-            ps.close()
             return contacts
         } catch (e: SQLException) {
             tryToClose(rs, LOG)
-            tryToClose(ps, LOG)
             throw DbException(e)
         }
     }
@@ -582,41 +1000,34 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
     @Throws(DbException::class)
     override fun removeContact(txn: Transaction, id: Int) {
         val connection: Connection = txn.unbox()
-        var ps: PreparedStatement? = null
         try {
-            val sql = "DELETE FROM contacts WHERE contactId = ?"
-            ps = connection.prepareStatement(sql)
+            val ps = prepareStatement(connection, DELETE_CONTACT)
             ps.setInt(1, id)
             val affected = ps.executeUpdate()
             if (affected != 1) throw DbStateException()
-            ps.close()
         } catch (e: SQLException) {
-            tryToClose(ps, LOG)
             throw DbException(e)
         }
     }
 
     override fun getContactWithToken(txn: Transaction, token: String): Contact? {
         val connection: Connection = txn.unbox()
-        var ps: PreparedStatement? = null
         var rs: ResultSet? = null
         try {
-            val sql = """SELECT contactId, inbox, outbox FROM contacts
-                                WHERE token = ?
-            """.trimIndent()
-            ps = connection.prepareStatement(sql)
-            ps.setString(1, token)
+            val ps = prepareStatement(connection, SELECT_CONTACT_WITH_TOKEN)
+            ps.setBytes(1, fromHexString(token))
             rs = ps.executeQuery()
-            if (!rs.next()) return null
+            if (!rs.next()) {
+                rs.close()
+                return null
+            }
             val id = rs.getInt(1)
-            val inboxId = rs.getString(2)
-            val outboxId = rs.getString(3)
+            val inboxId = rs.getBytes(2).toHex()
+            val outboxId = rs.getBytes(3).toHex()
             rs.close()
-            ps.close()
             return Contact(id, token, inboxId, outboxId)
         } catch (e: SQLException) {
             tryToClose(rs, LOG)
-            tryToClose(ps, LOG)
             throw DbException(e)
         }
     }
@@ -628,28 +1039,60 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
     private fun commitTransaction(txn: Transaction) {
         val connection: Connection = txn.unbox()
         check(!txn.isCommitted)
-        txn.setCommitted()
         commitTransaction(connection)
+        // Only now, so a failed commit gets aborted and doesn't run any attached actions
+        txn.setCommitted()
+        commits.increment()
     }
 
     /**
      * Ends a transaction. If the transaction has not been committed,
      * it will be aborted. If the transaction has been committed,
-     * any events attached to the transaction are broadcast.
+     * any events attached to the transaction are broadcast and any tasks attached to it are run.
      * The database lock will be released in either case.
      */
     private fun endTransaction(txn: Transaction) {
         try {
             val connection: Connection = txn.unbox()
             if (!txn.isCommitted) {
+                aborts.increment()
                 abortTransaction(connection)
-            }
-        } finally {
-            if (txn.isReadOnly) {
-                transactionLock.readLock().unlock()
             } else {
-                transactionLock.writeLock().unlock()
+                // Still holding the lock, so actions of later commits can't overtake these
+                runActions(LOG, eventBus, txn)
             }
+        } finally {
+            lastTransactionEnded = now()
+            unlockTransaction(txn.isReadOnly)
+        }
+    }
+
+    override fun <R> writeAsync(task: (Transaction) -> R): Deferred<R> {
+        return groupCommitter.enqueue(task)
+    }
+
+    /**
+     * Commits all writes queued by [writeAsync] and stops the thread committing them.
+     * Call this when closing the database, before preventing new transactions from starting.
+     */
+    protected fun stopGroupCommits() {
+        groupCommitter.stop()
+    }
+
+    /**
+     * Runs the task within a savepoint, which gets rolled back if the task fails.
+     */
+    @Throws(DbException::class)
+    private fun runIsolated(txn: Transaction, task: (Transaction) -> Boolean): Boolean {
+        val connection: Connection = txn.unbox()
+        try {
+            val savepoint = connection.setSavepoint()
+            val success = task(txn)
+            if (success) connection.releaseSavepoint(savepoint)
+            else connection.rollback(savepoint)
+            return success
+        } catch (e: SQLException) {
+            throw DbException(e)
         }
     }
 
@@ -667,12 +1110,14 @@ abstract class JdbcDatabase(private val dbTypes: DatabaseTypes, private val cloc
      */
     private fun <R> transaction(readOnly: Boolean, task: (Transaction) -> R): R {
         val txn = startTransaction(readOnly)
+        val start = System.nanoTime()
         try {
             val result = task(txn)
             commitTransaction(txn)
             return result
         } finally {
             endTransaction(txn)
+            (if (readOnly) readTransactions else writeTransactions).recordSince(start)
         }
     }
 
@@ -0,0 +1,67 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Number of buckets, the last one counts durations of 2^30 microseconds (about 18 minutes)
+ * and longer.
+ */
+private const val BUCKETS = 32
+
+/**
+ * A histogram of durations with exponentially growing buckets.
+ * Recording is lock-free and cheap enough to be always on, even on contended paths.
+ */
+internal class LatencyHistogram {
+
+    private val buckets = Array(BUCKETS) { LongAdder() }
+    private val count = LongAdder()
+    private val totalUs = LongAdder()
+    private val maxUs = AtomicLong()
+
+    fun record(nanos: Long) {
+        val us = (nanos / 1000).coerceAtLeast(0)
+        // bucket i holds durations in [2^(i-1), 2^i)
+        val bucket = (64 - java.lang.Long.numberOfLeadingZeros(us)).coerceAtMost(BUCKETS - 1)
+        buckets[bucket].increment()
+        count.increment()
+        totalUs.add(us)
+        maxUs.accumulateAndGet(us, ::maxOf)
+    }
+
+    /**
+     * Records the time that passed since [startNanos], as returned by [System.nanoTime].
+     */
+    fun recordSince(startNanos: Long) = record(System.nanoTime() - startNanos)
+
+    /**
+     * Returns a snapshot of the recorded durations. Events recorded concurrently
+     * might be reflected only partially.
+     */
+    fun getStats() = LatencyStats(
+        count = count.sum(),
+        totalUs = totalUs.sum(),
+        maxUs = maxUs.get(),
+        buckets = buckets.map { it.sum() },
+    )
+}
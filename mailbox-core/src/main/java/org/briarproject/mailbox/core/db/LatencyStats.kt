@@ -0,0 +1,67 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+/**
+ * A snapshot of a [LatencyHistogram].
+ */
+data class LatencyStats(
+    /**
+     * The number of recorded events.
+     */
+    val count: Long,
+    /**
+     * The sum of the durations of all recorded events in microseconds.
+     */
+    val totalUs: Long,
+    /**
+     * The longest recorded duration in microseconds.
+     */
+    val maxUs: Long,
+    /**
+     * The number of events in each bucket. Bucket `i` counts durations below `2^i` microseconds
+     * that didn't fit into an earlier bucket, the last bucket counts all longer durations.
+     */
+    val buckets: List<Long>,
+) {
+
+    val meanUs: Long get() = if (count == 0L) 0 else totalUs / count
+
+    /**
+     * Returns an upper bound for the given percentile in microseconds,
+     * e.g. `percentileUs(0.99)`, or 0 if no events were recorded.
+     */
+    fun percentileUs(percentile: Double): Long {
+        require(percentile in 0.0..1.0)
+        if (count == 0L) return 0
+        val rank = (count * percentile).toLong().coerceIn(1, count)
+        var seen = 0L
+        for ((i, n) in buckets.withIndex()) {
+            seen += n
+            if (seen >= rank) return minOf(1L shl i, maxUs)
+        }
+        return maxUs
+    }
+
+    override fun toString(): String {
+        return "count=$count mean=${meanUs}us p50<=${percentileUs(0.5)}us " +
+            "p99<=${percentileUs(0.99)}us max=${maxUs}us"
+    }
+}
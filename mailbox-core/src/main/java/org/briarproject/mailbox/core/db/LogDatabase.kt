@@ -0,0 +1,711 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Deferred
+import org.briarproject.mailbox.core.contacts.Contact
+import org.briarproject.mailbox.core.db.CommitAction.Companion.runActions
+import org.briarproject.mailbox.core.event.EventBus
+import org.briarproject.mailbox.core.settings.Settings
+import org.briarproject.mailbox.core.util.IoUtils.tryToClose
+import org.briarproject.mailbox.core.util.LogUtils.info
+import org.briarproject.mailbox.core.util.LogUtils.logDuration
+import org.briarproject.mailbox.core.util.LogUtils.logException
+import org.briarproject.mailbox.core.util.LogUtils.now
+import org.briarproject.mailbox.core.util.LogUtils.warn
+import org.slf4j.LoggerFactory.getLogger
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+import java.util.concurrent.locks.ReentrantLock
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.zip.CRC32
+import kotlin.concurrent.withLock
+
+/**
+ * A [Database] that keeps all data in memory and persists it in an append-only log.
+ *
+ * Every committed transaction gets appended to the log as a single checksummed frame and synced
+ * to disk before its changes become visible to other transactions. A crash can therefore only
+ * leave an incomplete last frame behind, which gets discarded when opening the database again.
+ * Any other invalid frame means the files are corrupt, so opening the database fails.
+ * Compacting replaces the log with a snapshot of the current state.
+ *
+ * Transactions see the data as of the last commit before they started, see [LogStore]. How they
+ * wait for writers depends on the [ConcurrencyMode], like for a [JdbcDatabase].
+ */
+class LogDatabase(
+    private val config: DatabaseConfig,
+    private val eventBus: EventBus,
+) : Database {
+
+    internal companion object {
+        private val LOG = getLogger(LogDatabase::class.java)
+
+        internal const val SNAPSHOT_FILE = "db.snapshot"
+        internal const val LOG_FILE = "db.log"
+
+        /**
+         * Written at the start of the snapshot and the log, followed by [FORMAT_VERSION].
+         */
+        private const val MAGIC = 0x4d424c47 // "MBLG"
+        private const val FORMAT_VERSION = 1
+        private const val FILE_HEADER_SIZE = 8
+
+        /**
+         * Each frame starts with the length of its payload and the payload's CRC32.
+         */
+        private const val FRAME_HEADER_SIZE = 8
+
+        private const val OP_PUT_CONTACT = 1
+        private const val OP_REMOVE_CONTACT = 2
+        private const val OP_PUT_SETTING = 3
+
+        /**
+         * Once the log has grown beyond this many bytes, the database should be compacted.
+         */
+        private const val MAX_LOG_SIZE = 1024 * 1024L
+    }
+
+    private val concurrencyMode = config.getConcurrencyMode()
+
+    /**
+     * See [JdbcDatabase]: in [ConcurrencyMode.EXCLUSIVE], writers take the write lock and
+     * readers the read lock. In [ConcurrencyMode.MVCC], all transactions only take the read lock.
+     * Closing the database takes the write lock to wait for all transactions to finish.
+     */
+    private val transactionLock = ReentrantReadWriteLock(true)
+
+    /**
+     * In [ConcurrencyMode.MVCC], makes sure only one writable transaction is in progress.
+     */
+    private val writerLock = ReentrantLock(true)
+
+    /**
+     * The committed data. Writers only apply their changes to it when committing.
+     */
+    @Volatile
+    private var store = LogStore()
+
+    @Volatile
+    private var closed = true
+
+    /**
+     * The log file, positioned at its end. Only used while holding a writer's lock.
+     */
+    @Volatile
+    private var log: FileChannel? = null
+
+    @Volatile
+    private var compactionRequested = false
+
+    private val activeTransactions = AtomicInteger()
+
+    @Volatile
+    private var lastTransactionEnded = now()
+
+    private val readLockWait = LatencyHistogram()
+    private val writeLockWait = LatencyHistogram()
+    private val readTransactions = LatencyHistogram()
+    private val writeTransactions = LatencyHistogram()
+    private val compactions = LatencyHistogram()
+    private val commits = LongAdder()
+    private val aborts = LongAdder()
+
+    private val groupCommitter = GroupCommitter(config, this, ::runIsolated)
+
+    private val databaseDispatcher = DatabaseDispatcher(config.getMaxConnections())
+
+    override val dispatcher: CoroutineDispatcher get() = databaseDispatcher.get()
+
+    private val snapshotFile get() = File(config.getDatabaseDirectory(), SNAPSHOT_FILE)
+    private val logFile get() = File(config.getDatabaseDirectory(), LOG_FILE)
+
+    override fun open(listener: MigrationListener?): Boolean {
+        val start = now()
+        val dir = config.getDatabaseDirectory()
+        if (!dir.isDirectory && dir.mkdirs()) LOG.info("Created database directory")
+        val loaded = LogChanges()
+        var reopen = false
+        try {
+            if (snapshotFile.exists()) {
+                val bytes = snapshotFile.readBytes()
+                // Snapshots are complete once renamed, so anything invalid means corruption
+                if (replay(bytes, loaded) != bytes.size) throw DbException(DbStateException())
+                reopen = true
+            }
+            val channel = RandomAccessFile(logFile, "rw").channel
+            try {
+                if (openLog(channel, loaded)) reopen = true
+            } catch (e: Exception) {
+                tryToClose(channel, LOG)
+                throw e
+            }
+            log = channel
+        } catch (e: IOException) {
+            throw DbException(e)
+        }
+        val s = LogStore()
+        s.apply(loaded)
+        store = s
+        closed = false
+        groupCommitter.start()
+        databaseDispatcher.open()
+        val contacts = loaded.contacts.values.count { it != null }
+        logDuration(LOG, start) { "Loading $contacts contacts" }
+        LOG.info { if (reopen) "reopened database" else "created database" }
+        return reopen
+    }
+
+    /**
+     * Replays the log into the given changes, discards an incomplete commit at its end and
+     * leaves the log positioned for appending. Returns true if the log contained any commits.
+     */
+    @Throws(DbException::class, IOException::class)
+    private fun openLog(channel: FileChannel, changes: LogChanges): Boolean {
+        val bytes = readFully(channel)
+        val valid = replay(bytes, changes)
+        if (valid < bytes.size) {
+            LOG.warn { "Discarding ${bytes.size - valid} bytes of an incomplete commit" }
+            channel.truncate(valid.toLong())
+        }
+        if (valid == 0) appendFully(channel, fileHeader())
+        if (valid > MAX_LOG_SIZE) compactionRequested = true
+        channel.position(channel.size())
+        channel.force(false)
+        return valid > FILE_HEADER_SIZE
+    }
+
+    override fun close() {
+        groupCommitter.stop()
+        closeWhenIdle { }
+    }
+
+    override fun dropAllTablesAndClose() {
+        groupCommitter.stop()
+        closeWhenIdle { wasClosed ->
+            if (wasClosed) throw DbClosedException()
+            store = LogStore()
+            snapshotFile.delete()
+            logFile.delete()
+        }
+    }
+
+    /**
+     * Prevents new transactions from starting, waits for all current transactions to finish,
+     * closes the log and then runs [block] with the information if the database was closed before.
+     */
+    private fun closeWhenIdle(block: (Boolean) -> Unit) {
+        check(transactionLock.readHoldCount <= 0)
+        transactionLock.writeLock().withLock {
+            val wasClosed = closed
+            closed = true
+            tryToClose(log, LOG)
+            log = null
+            databaseDispatcher.close()
+            block(wasClosed)
+        }
+    }
+
+    override fun isCompactionDue(): Boolean {
+        if (compactionRequested) return true
+        return try {
+            (log?.size() ?: 0) > MAX_LOG_SIZE
+        } catch (e: IOException) {
+            throw DbException(e)
+        }
+    }
+
+    /**
+     * There are no migrations, but the log might have grown enough to be compacted.
+     */
+    override fun isMaintenanceDue(): Boolean = compactionRequested
+
+    override fun runMaintenance() {
+        if (compactionRequested) compact()
+    }
+
+    override fun getIdleTime(): Long {
+        return if (activeTransactions.get() > 0) 0 else now() - lastTransactionEnded
+    }
+
+    override fun compact(): CompactionResult {
+        val sizeBefore = getDatabaseSize()
+        val start = now()
+        val startNanos = System.nanoTime()
+        // Block writers, so no commits get lost when truncating the log
+        lockTransaction(false)
+        try {
+            if (closed) throw DbClosedException()
+            val s = store
+            writeSnapshot(s, s.version)
+            val channel = log ?: throw DbClosedException()
+            // A crash before truncating is harmless, the log's changes are already in the snapshot
+            // and replaying them again leads to the same state
+            channel.truncate(FILE_HEADER_SIZE.toLong())
+            channel.force(false)
+            s.dropRemoved()
+        } catch (e: IOException) {
+            throw DbException(e)
+        } finally {
+            unlockTransaction(false)
+        }
+        compactions.recordSince(startNanos)
+        compactionRequested = false
+        val result = CompactionResult(sizeBefore, getDatabaseSize(), now() - start)
+        LOG.info {
+            "Compacted database from ${result.sizeBefore} to ${result.sizeAfter} bytes " +
+                "in ${result.durationMs} ms"
+        }
+        return result
+    }
+
+    @Throws(IOException::class)
+    private fun writeSnapshot(s: LogStore, version: Long) {
+        val ops = Ops()
+        for (c in s.getContacts(version)) ops.putContact(c)
+        for (namespace in s.getNamespaces()) {
+            for ((key, value) in s.getSettings(version, namespace)) {
+                ops.putSetting(namespace, key, value)
+            }
+        }
+        val dir = config.getDatabaseDirectory()
+        val tmp = File(dir, "$SNAPSHOT_FILE.tmp")
+        FileOutputStream(tmp).use { out ->
+            out.write(fileHeader().array())
+            out.write(ops.toFrame().array())
+            out.fd.sync()
+        }
+        if (!tmp.renameTo(snapshotFile)) throw IOException("Could not replace snapshot")
+        syncDirectory(dir)
+    }
+
+    /**
+     * Syncs the given directory, so a rename in it survives a crash. Windows can't open
+     * directories and Android before API 26 lacks java.nio.file, so the rename only gets
+     * persisted whenever the file system gets around to it there.
+     */
+    private fun syncDirectory(dir: File) {
+        try {
+            FileChannel.open(dir.toPath(), StandardOpenOption.READ).use { it.force(true) }
+        } catch (e: IOException) {
+            logException(LOG, e) { "Could not sync database directory" }
+        } catch (e: LinkageError) {
+            logException(LOG, e) { "Could not sync database directory" }
+        }
+    }
+
+    private fun getDatabaseSize(): Long {
+        return snapshotFile.length() + logFile.length()
+    }
+
+    override fun getSettings(txn: Transaction, namespace: String): Settings {
+        return txn.unboxLog().getSettings(namespace)
+    }
+
+    override fun mergeSettings(txn: Transaction, s: Settings, namespace: String) {
+        val t = txn.writable()
+        for ((key, value) in s) {
+            t.changes.putSetting(namespace, key, value)
+            t.ops.putSetting(namespace, key, value)
+        }
+    }
+
+    override fun addContact(txn: Transaction, contact: Contact) {
+        val t = txn.writable()
+        val conflict = t.getContact(contact.contactId) != null ||
+            t.getContactWithToken(contact.token) != null ||
+            t.getContacts().any {
+                it.inboxId == contact.inboxId || it.outboxId == contact.outboxId
+            }
+        if (conflict) throw DbException(DbStateException())
+        t.changes.putContact(contact)
+        t.ops.putContact(contact)
+    }
+
+    override fun getContact(txn: Transaction, id: Int): Contact? {
+        return txn.unboxLog().getContact(id)
+    }
+
+    override fun getContacts(txn: Transaction): List<Contact> {
+        return txn.unboxLog().getContacts()
+    }
+
+    override fun removeContact(txn: Transaction, id: Int) {
+        val t = txn.writable()
+        if (t.getContact(id) == null) throw DbException(DbStateException())
+        t.changes.removeContact(id)
+        t.ops.removeContact(id)
+    }
+
+    override fun getContactWithToken(txn: Transaction, token: String): Contact? {
+        return txn.unboxLog().getContactWithToken(token)
+    }
+
+    /**
+     * There are no connections, so all values are zero.
+     */
+    override fun getConnectionPoolStats() = ConnectionPoolStats(0, 0, 0, 0, 0)
+
+    override fun getStats() = DatabaseStats(
+        readLockWait = readLockWait.getStats(),
+        writeLockWait = writeLockWait.getStats(),
+        readTransactions = readTransactions.getStats(),
+        writeTransactions = writeTransactions.getStats(),
+        commits = commits.sum(),
+        aborts = aborts.sum(),
+        connectionCheckouts = 0,
+        compaction = compactions.getStats(),
+        connectionPool = getConnectionPoolStats(),
+    )
+
+    override fun <R> read(task: (Transaction) -> R): R {
+        return transaction(true, task)
+    }
+
+    override fun <R> write(task: (Transaction) -> R): R {
+        return transaction(false, task)
+    }
+
+    override fun <R> writeAsync(task: (Transaction) -> R): Deferred<R> {
+        return groupCommitter.enqueue(task)
+    }
+
+    /**
+     * Runs the task with its own changes on top of the given transaction's, which only get
+     * merged into them if the task succeeds.
+     */
+    private fun runIsolated(txn: Transaction, task: (Transaction) -> Boolean): Boolean {
+        val t = txn.unboxLog()
+        val nested = Transaction(LogTransaction(t.store, t.version, t), false)
+        val success = task(nested)
+        if (success) {
+            t.merge(nested.unboxLog())
+            txn.attachAll(nested)
+        }
+        return success
+    }
+
+    private fun <R> transaction(readOnly: Boolean, task: (Transaction) -> R): R {
+        lockTransaction(readOnly)
+        val start = System.nanoTime()
+        activeTransactions.incrementAndGet()
+        var committed = false
+        try {
+            if (closed) throw DbClosedException()
+            val s = store
+            val version = s.openSnapshot()
+            try {
+                val txn = Transaction(LogTransaction(s, version), readOnly)
+                val result = task(txn)
+                if (!readOnly) commit(txn.unboxLog())
+                txn.setCommitted()
+                committed = true
+                // Still holding the lock, so actions of later commits can't overtake these
+                runActions(LOG, eventBus, txn)
+                return result
+            } finally {
+                s.closeSnapshot(version)
+            }
+        } finally {
+            if (committed) commits.increment() else aborts.increment()
+            lastTransactionEnded = now()
+            activeTransactions.decrementAndGet()
+            unlockTransaction(readOnly)
+            (if (readOnly) readTransactions else writeTransactions).recordSince(start)
+        }
+    }
+
+    /**
+     * Appends the changes of the given transaction to the log and makes them visible.
+     */
+    private fun commit(t: LogTransaction) {
+        if (t.ops.isEmpty) return
+        val channel = log ?: throw DbClosedException()
+        var position = -1L
+        try {
+            position = channel.position()
+            appendFully(channel, t.ops.toFrame())
+            channel.force(false)
+        } catch (e: IOException) {
+            // Don't leave a partial frame behind that later commits would get appended to
+            if (position >= 0) {
+                try {
+                    channel.truncate(position)
+                } catch (e2: IOException) {
+                    logException(LOG, e2) { "Error while truncating log" }
+                }
+            }
+            throw DbException(e)
+        }
+        t.store.apply(t.changes)
+    }
+
+    private fun lockTransaction(readOnly: Boolean) {
+        // Don't allow reentrant locking
+        check(transactionLock.readHoldCount <= 0)
+        check(transactionLock.writeHoldCount <= 0)
+        check(!writerLock.isHeldByCurrentThread)
+        val start = System.nanoTime()
+        if (readOnly) {
+            transactionLock.readLock().lock()
+            readLockWait.recordSince(start)
+        } else if (concurrencyMode == ConcurrencyMode.MVCC) {
+            transactionLock.readLock().lock()
+            try {
+                writerLock.lock()
+            } catch (e: Throwable) {
+                transactionLock.readLock().unlock()
+                throw e
+            }
+            writeLockWait.recordSince(start)
+        } else {
+            transactionLock.writeLock().lock()
+            writeLockWait.recordSince(start)
+        }
+    }
+
+    private fun unlockTransaction(readOnly: Boolean) {
+        if (readOnly) {
+            transactionLock.readLock().unlock()
+        } else if (concurrencyMode == ConcurrencyMode.MVCC) {
+            writerLock.unlock()
+            transactionLock.readLock().unlock()
+        } else {
+            transactionLock.writeLock().unlock()
+        }
+    }
+
+    @Throws(DbException::class)
+    private fun Transaction.unboxLog(): LogTransaction {
+        val t = unboxAny()
+        return t as? LogTransaction
+            ?: throw DbException("Not a LogDatabase transaction: ${t.javaClass.simpleName}")
+    }
+
+    private fun Transaction.writable(): LogTransaction {
+        check(!isReadOnly)
+        return unboxLog()
+    }
+
+    private fun fileHeader(): ByteBuffer {
+        val header = ByteBuffer.allocate(FILE_HEADER_SIZE)
+        header.putInt(MAGIC)
+        header.putInt(FORMAT_VERSION)
+        header.flip()
+        return header
+    }
+
+    @Throws(IOException::class)
+    private fun readFully(channel: FileChannel): ByteArray {
+        val size = channel.size()
+        if (size > Int.MAX_VALUE) throw IOException("Log too large")
+        val buffer = ByteBuffer.allocate(size.toInt())
+        channel.position(0)
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw EOFException()
+        }
+        return buffer.array()
+    }
+
+    @Throws(IOException::class)
+    private fun appendFully(channel: FileChannel, buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) channel.write(buffer)
+    }
+
+    /**
+     * Collects the changes in the frames of a snapshot or log and returns the number
+     * of bytes that were valid, i.e. the header and all complete frames.
+     *
+     * Only the last frame may be incomplete, as appending it might have been interrupted by a
+     * crash. An invalid frame followed by more data means corruption and throws an exception.
+     */
+    @Throws(DbException::class)
+    private fun replay(bytes: ByteArray, changes: LogChanges): Int {
+        if (bytes.size < FILE_HEADER_SIZE) return 0
+        val buffer = ByteBuffer.wrap(bytes)
+        if (buffer.int != MAGIC) throw DbException(DbStateException())
+        if (buffer.int > FORMAT_VERSION) throw DataTooNewException()
+        var valid = FILE_HEADER_SIZE
+        while (buffer.remaining() >= FRAME_HEADER_SIZE) {
+            val length = buffer.int
+            val crc = buffer.int
+            if (length < 0) throw DbException(DbStateException())
+            if (length > buffer.remaining()) break
+            val checksum = CRC32()
+            checksum.update(bytes, buffer.position(), length)
+            if (checksum.value.toInt() != crc) {
+                if (length == buffer.remaining()) break
+                throw DbException(DbStateException())
+            }
+            try {
+                val input = DataInputStream(ByteArrayInputStream(bytes, buffer.position(), length))
+                applyOps(input, changes)
+            } catch (e: IOException) {
+                throw DbException(e)
+            }
+            buffer.position(buffer.position() + length)
+            valid = buffer.position()
+        }
+        return valid
+    }
+
+    @Throws(IOException::class)
+    private fun applyOps(input: DataInputStream, changes: LogChanges) {
+        while (input.available() > 0) {
+            when (input.readByte().toInt()) {
+                OP_PUT_CONTACT -> changes.putContact(
+                    Contact(input.readInt(), input.readUTF(), input.readUTF(), input.readUTF())
+                )
+                OP_REMOVE_CONTACT -> changes.removeContact(input.readInt())
+                OP_PUT_SETTING -> {
+                    val namespace = input.readUTF()
+                    val key = input.readUTF()
+                    changes.putSetting(namespace, key, input.readUTF())
+                }
+                else -> throw IOException("Unknown operation")
+            }
+        }
+    }
+
+    /**
+     * The changes of a transaction, encoded the way they get written to the log.
+     */
+    private class Ops {
+
+        private val bytes = ByteArrayOutputStream()
+        private val out = DataOutputStream(bytes)
+
+        val isEmpty get() = bytes.size() == 0
+
+        fun putContact(c: Contact) {
+            out.writeByte(OP_PUT_CONTACT)
+            out.writeInt(c.contactId)
+            out.writeUTF(c.token)
+            out.writeUTF(c.inboxId)
+            out.writeUTF(c.outboxId)
+        }
+
+        fun removeContact(id: Int) {
+            out.writeByte(OP_REMOVE_CONTACT)
+            out.writeInt(id)
+        }
+
+        fun putSetting(namespace: String, key: String, value: String) {
+            out.writeByte(OP_PUT_SETTING)
+            out.writeUTF(namespace)
+            out.writeUTF(key)
+            out.writeUTF(value)
+        }
+
+        fun append(other: Ops) {
+            other.bytes.writeTo(bytes)
+        }
+
+        /**
+         * Returns a frame holding these changes, ready to be written.
+         */
+        fun toFrame(): ByteBuffer {
+            val payload = bytes.toByteArray()
+            val checksum = CRC32()
+            checksum.update(payload)
+            val frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.size)
+            frame.putInt(payload.size)
+            frame.putInt(checksum.value.toInt())
+            frame.put(payload)
+            frame.flip()
+            return frame
+        }
+    }
+
+    /**
+     * The state of a transaction: the data committed as of its version, plus its own changes.
+     * A nested transaction also sees the changes of its parent.
+     */
+    private class LogTransaction(
+        val store: LogStore,
+        val version: Long,
+        private val parent: LogTransaction? = null,
+    ) {
+
+        val changes = LogChanges()
+        val ops = Ops()
+
+        /**
+         * The changes seen by this transaction, oldest first.
+         */
+        private fun layers(): List<LogChanges> {
+            return generateSequence(this) { it.parent }.map { it.changes }.toList().asReversed()
+        }
+
+        fun getContact(id: Int): Contact? {
+            var t: LogTransaction? = this
+            while (t != null) {
+                if (t.changes.contacts.containsKey(id)) return t.changes.contacts[id]
+                t = t.parent
+            }
+            return store.getContact(version, id)
+        }
+
+        fun getContacts(): List<Contact> {
+            val contacts = HashMap<Int, Contact?>()
+            store.getContacts(version).associateByTo(contacts) { it.contactId }
+            for (c in layers()) contacts.putAll(c.contacts)
+            return contacts.values.filterNotNull()
+        }
+
+        fun getContactWithToken(token: String): Contact? {
+            // Changed contacts might have taken over the token, or given it up
+            val candidates = layers().flatMap { it.contacts.values }.filter { it?.token == token }
+            for (c in candidates + store.getContactWithToken(version, token)) {
+                val current = c?.let { getContact(it.contactId) }
+                if (current?.token == token) return current
+            }
+            return null
+        }
+
+        fun getSettings(namespace: String): Settings {
+            val s = store.getSettings(version, namespace)
+            for (c in layers()) c.settings[namespace]?.let { s.putAll(it) }
+            return s
+        }
+
+        /**
+         * Takes over the changes of a transaction that was started on top of this one.
+         */
+        fun merge(nested: LogTransaction) {
+            changes.putAll(nested.changes)
+            ops.append(nested.ops)
+        }
+    }
+
+}
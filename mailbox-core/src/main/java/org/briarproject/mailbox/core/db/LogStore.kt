@@ -0,0 +1,210 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+import org.briarproject.mailbox.core.contacts.Contact
+import org.briarproject.mailbox.core.settings.Settings
+import java.util.concurrent.ConcurrentHashMap
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * The changes of a [LogDatabase] transaction, or of replaying its files, that haven't been
+ * applied to a [LogStore] yet. A null contact marks a removed contact.
+ */
+internal class LogChanges {
+
+    val contacts = HashMap<Int, Contact?>()
+    val settings = HashMap<String, HashMap<String, String>>()
+
+    fun putContact(contact: Contact) {
+        contacts[contact.contactId] = contact
+    }
+
+    fun removeContact(id: Int) {
+        contacts[id] = null
+    }
+
+    fun putSetting(namespace: String, key: String, value: String) {
+        settings.getOrPut(namespace) { HashMap() }[key] = value
+    }
+
+    /**
+     * Takes over the given changes, which were made after these ones.
+     */
+    fun putAll(later: LogChanges) {
+        contacts.putAll(later.contacts)
+        for ((namespace, s) in later.settings) {
+            settings.getOrPut(namespace) { HashMap() }.putAll(s)
+        }
+    }
+}
+
+/**
+ * The committed data of a [LogDatabase].
+ *
+ * Each key maps to its values as of the versions they were committed in, newest first. A reader
+ * keeps seeing the values as of the version it started at, while a writer adds a newer version.
+ * Applying changes therefore only touches the keys that were changed, instead of copying all data.
+ * Values that no open snapshot can see anymore get dropped.
+ */
+@ThreadSafe
+internal class LogStore {
+
+    private val contacts = ConcurrentHashMap<Int, Version<Contact>>()
+    private val contactsByToken = ConcurrentHashMap<String, Version<Contact>>()
+    private val settings = ConcurrentHashMap<String, ConcurrentHashMap<String, Version<String>>>()
+
+    /**
+     * The number of open snapshots by the version they were opened at.
+     */
+    @GuardedBy("this")
+    private val snapshots = HashMap<Long, Int>()
+
+    /**
+     * The version of the last applied changes.
+     */
+    @Volatile
+    var version = 0L
+        private set
+
+    /**
+     * Returns the current version, which stays readable until [closeSnapshot] gets called.
+     */
+    @Synchronized
+    fun openSnapshot(): Long {
+        val v = version
+        snapshots[v] = (snapshots[v] ?: 0) + 1
+        return v
+    }
+
+    @Synchronized
+    fun closeSnapshot(version: Long) {
+        val count = snapshots.getValue(version) - 1
+        if (count == 0) snapshots.remove(version) else snapshots[version] = count
+    }
+
+    @Synchronized
+    private fun oldestSnapshot(): Long = snapshots.keys.minOrNull() ?: version
+
+    @Synchronized
+    private fun publish(version: Long) {
+        this.version = version
+    }
+
+    fun getContact(version: Long, id: Int): Contact? = contacts[id].valueAt(version)
+
+    fun getContacts(version: Long): List<Contact> {
+        return contacts.values.mapNotNull { it.valueAt(version) }
+    }
+
+    fun getContactWithToken(version: Long, token: String): Contact? {
+        return contactsByToken[token].valueAt(version)
+    }
+
+    fun getSettings(version: Long, namespace: String): Settings {
+        val s = Settings()
+        settings[namespace]?.forEach { (key, value) ->
+            value.valueAt(version)?.let { s[key] = it }
+        }
+        return s
+    }
+
+    fun getNamespaces(): Set<String> = settings.keys
+
+    /**
+     * Makes the given changes visible as a new version. Must not be called concurrently.
+     */
+    fun apply(changes: LogChanges) {
+        val current = version
+        val next = current + 1
+        val oldest = oldestSnapshot()
+        // Unmap all replaced tokens first, a changed contact might have taken over one of them
+        for ((id, contact) in changes.contacts) {
+            val old = getContact(current, id) ?: continue
+            if (old.token != contact?.token) contactsByToken.put(old.token, null, next, oldest)
+        }
+        for ((id, contact) in changes.contacts) {
+            contacts.put(id, contact, next, oldest)
+            if (contact != null) contactsByToken.put(contact.token, contact, next, oldest)
+        }
+        for ((namespace, s) in changes.settings) {
+            val values = settings.getOrPut(namespace) { ConcurrentHashMap() }
+            for ((key, value) in s) values.put(key, value, next, oldest)
+        }
+        publish(next)
+    }
+
+    /**
+     * Forgets removed keys that no open snapshot can see anymore.
+     * Must not be called concurrently with [apply].
+     */
+    fun dropRemoved() {
+        val oldest = oldestSnapshot()
+        contacts.dropRemoved(oldest)
+        contactsByToken.dropRemoved(oldest)
+        settings.values.forEach { it.dropRemoved(oldest) }
+    }
+
+    /**
+     * A value as of the version it was committed in, linked to the value it replaced.
+     * A null value means the key was removed.
+     */
+    private class Version<V>(
+        val version: Long,
+        val value: V?,
+        @Volatile var older: Version<V>?,
+    )
+
+    private fun <V> Version<V>?.valueAt(version: Long): V? {
+        var v = this
+        while (v != null && v.version > version) v = v.older
+        return v?.value
+    }
+
+    private fun <K, V> ConcurrentHashMap<K, Version<V>>.put(
+        key: K,
+        value: V?,
+        version: Long,
+        oldest: Long,
+    ) {
+        val current = this[key]
+        // Nobody can see a key that never existed, so there's nothing to remove
+        if (current == null && value == null) return
+        val head = if (current != null && current.version == version) {
+            Version(version, value, current.older)
+        } else {
+            Version(version, value, current)
+        }
+        // Drop the values older than the newest one the oldest snapshot can see
+        var v = head
+        while (v.version > oldest) v = v.older ?: break
+        if (v.version <= oldest) v.older = null
+        this[key] = head
+    }
+
+    private fun <K, V> ConcurrentHashMap<K, Version<V>>.dropRemoved(oldest: Long) {
+        val it = entries.iterator()
+        while (it.hasNext()) {
+            val head = it.next().value
+            if (head.value == null && head.version <= oldest) it.remove()
+        }
+    }
+}
@@ -32,4 +32,19 @@ interface Migration<T> {
 
     @Throws(DbException::class)
     fun migrate(txn: T)
+
+    /**
+     * Returns true if this migration has work left after [migrate] that the current code
+     * doesn't depend on, such as dropping data that is no longer used.
+     */
+    val hasDeferredWork: Boolean get() = false
+
+    /**
+     * Does the work left after [migrate]. This happens in a transaction of its own after
+     * services have been started, possibly after the database has been reopened, so it must be
+     * safe to run more than once.
+     */
+    @Throws(DbException::class)
+    fun migrateDeferred(txn: T) {
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+import org.briarproject.mailbox.core.db.JdbcUtils.tryToClose
+import org.briarproject.mailbox.core.util.LogUtils.info
+import org.briarproject.mailbox.core.util.StringUtils.fromHexString
+import org.slf4j.LoggerFactory.getLogger
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.sql.SQLException
+import java.sql.Statement
+
+/**
+ * Stores the token, inbox and outbox of contacts as binary instead of hex strings.
+ * The contacts are copied over to a new table in batches of [BATCH_SIZE],
+ * so the whole table never needs to be held in memory.
+ * The old table only gets dropped once services have been started.
+ */
+internal class Migration1_2(
+    private val dbTypes: DatabaseTypes,
+    private val listener: MigrationListener?,
+) : Migration<Connection> {
+
+    companion object {
+        private val LOG = getLogger(Migration1_2::class.java)
+
+        private const val BATCH_SIZE = 1000
+
+        private val CREATE_CONTACTS_BINARY = """
+                    CREATE TABLE contactsBinary
+                           (contactId INT NOT NULL,
+                           token _SECRET NOT NULL,
+                           inbox _HASH NOT NULL,
+                           outbox _HASH NOT NULL,
+                           PRIMARY KEY (contactId))
+        """.trimIndent()
+    }
+
+    override val startVersion: Int = 1
+    override val endVersion: Int = 2
+    override val hasDeferredWork: Boolean = true
+
+    @Throws(DbException::class)
+    override fun migrate(txn: Connection) {
+        var s: Statement? = null
+        var rs: ResultSet? = null
+        var ps: PreparedStatement? = null
+        try {
+            s = txn.createStatement()
+            s.execute(dbTypes.replaceTypes(CREATE_CONTACTS_BINARY))
+            rs = s.executeQuery("SELECT COUNT (contactId) FROM contacts")
+            rs.next()
+            val total = rs.getInt(1)
+            rs.close()
+            LOG.info { "Migrating $total contacts" }
+
+            val sql = """INSERT INTO contactsBinary (contactId, token, inbox, outbox)
+                                VALUES (?, ?, ?, ?)
+            """.trimIndent()
+            ps = txn.prepareStatement(sql)
+            s.fetchSize = BATCH_SIZE
+            rs = s.executeQuery("SELECT contactId, token, inbox, outbox FROM contacts")
+            var migrated = 0
+            while (rs.next()) {
+                ps.setInt(1, rs.getInt(1))
+                ps.setBytes(2, fromHexString(rs.getString(2)))
+                ps.setBytes(3, fromHexString(rs.getString(3)))
+                ps.setBytes(4, fromHexString(rs.getString(4)))
+                ps.addBatch()
+                migrated++
+                if (migrated % BATCH_SIZE == 0) {
+                    executeBatch(ps)
+                    listener?.onDatabaseMigrationProgress(migrated, total)
+                }
+            }
+            rs.close()
+            if (migrated % BATCH_SIZE != 0) {
+                executeBatch(ps)
+                listener?.onDatabaseMigrationProgress(migrated, total)
+            }
+            ps.close()
+
+            // The indexes get created again for the new table after migrating
+            s.execute("DROP INDEX IF EXISTS contactsByToken")
+            s.execute("DROP INDEX IF EXISTS contactsByInbox")
+            s.execute("DROP INDEX IF EXISTS contactsByOutbox")
+            s.execute("ALTER TABLE contacts RENAME TO contactsHex")
+            s.execute("ALTER TABLE contactsBinary RENAME TO contacts")
+            s.close()
+        } catch (e: SQLException) {
+            tryToClose(rs, LOG)
+            tryToClose(ps, LOG)
+            tryToClose(s, LOG)
+            throw DbException(e)
+        } catch (e: IllegalArgumentException) {
+            // one of the stored IDs is not a hex string
+            tryToClose(rs, LOG)
+            tryToClose(ps, LOG)
+            tryToClose(s, LOG)
+            throw DbException(e)
+        }
+    }
+
+    @Throws(DbException::class)
+    override fun migrateDeferred(txn: Connection) {
+        var s: Statement? = null
+        try {
+            s = txn.createStatement()
+            s.execute("DROP TABLE IF EXISTS contactsHex")
+            s.close()
+        } catch (e: SQLException) {
+            tryToClose(s, LOG)
+            throw DbException(e)
+        }
+    }
+
+    @Throws(SQLException::class, DbStateException::class)
+    private fun executeBatch(ps: PreparedStatement) {
+        val batchAffected = ps.executeBatch()
+        for (rows in batchAffected) if (rows != 1) throw DbStateException()
+    }
+
+}
@@ -28,8 +28,12 @@ public interface MigrationListener {
 	void onDatabaseMigration();
 
 	/**
-	 * This is called when compaction is started while opening the database.
+	 * This is called repeatedly while a migration is being applied that
+	 * needs to process the stored data, after every batch of processed rows.
+	 *
+	 * @param done the number of rows processed so far
+	 * @param total the total number of rows to process
 	 */
-	void onDatabaseCompaction();
+	void onDatabaseMigrationProgress(int done, int total);
 
 }
@@ -0,0 +1,50 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.db
+
+import kotlinx.coroutines.CompletableDeferred
+
+/**
+ * A task queued by [TransactionManager.writeAsync] and its result,
+ * which only gets completed once the transaction it ran in has been committed.
+ */
+internal class QueuedWrite<R>(private val task: (Transaction) -> R) {
+
+    val result = CompletableDeferred<R>()
+
+    private var outcome: Result<R>? = null
+
+    /**
+     * Runs the task and returns true if it succeeded.
+     */
+    fun run(txn: Transaction): Boolean {
+        val o = runCatching { task(txn) }
+        outcome = o
+        return o.isSuccess
+    }
+
+    fun complete() {
+        outcome!!.fold({ result.complete(it) }, { result.completeExceptionally(it) })
+    }
+
+    fun fail(t: Throwable) {
+        result.completeExceptionally(t)
+    }
+}
@@ -19,10 +19,11 @@
 
 package org.briarproject.mailbox.core.db
 
+import org.briarproject.mailbox.core.event.Event
 import java.sql.Connection
 
 class Transaction(
-    private val txn: Connection,
+    private val txn: Any,
     /**
      * Returns true if the transaction can only be used for reading.
      */
@@ -35,10 +36,62 @@ class Transaction(
     var isCommitted = false
         private set
 
+    private val actions = ArrayList<CommitAction>()
+
+    /**
+     * The actions to run once the transaction has been committed, in the order they were attached.
+     */
+    internal val commitActions: List<CommitAction> get() = actions
+
+    /**
+     * Attaches an event to be broadcast when the transaction has been committed.
+     * The event is dropped if the transaction gets aborted.
+     */
+    fun attach(e: Event) {
+        actions.add(CommitAction.EventAction(e))
+    }
+
+    /**
+     * Attaches a task to be run when the transaction has been committed. The task runs on the
+     * committing thread before any later write transaction can commit, so it can be used for
+     * updating caches. It must not block or start a transaction itself.
+     * The task is dropped if the transaction gets aborted.
+     */
+    fun attach(task: () -> Unit) {
+        actions.add(CommitAction.TaskAction(task))
+    }
+
     /**
-     * Returns the database connection.
+     * Moves the actions of a nested transaction that has been merged into this one.
      */
+    internal fun attachAll(nested: Transaction) {
+        actions.addAll(nested.actions)
+        nested.actions.clear()
+    }
+
+    /**
+     * Drops the actions attached after the first [count] ones,
+     * when rolling back to a savepoint.
+     */
+    internal fun discardActionsAfter(count: Int) {
+        while (actions.size > count) actions.removeAt(actions.size - 1)
+    }
+
+    /**
+     * Returns the database connection. Only transactions of a [JdbcDatabase] have one.
+     *
+     * @throws DbException if this is the transaction of another kind of database.
+     */
+    @Throws(DbException::class)
     fun unbox(): Connection {
+        return txn as? Connection
+            ?: throw DbException("Not a JDBC transaction: ${txn.javaClass.simpleName}")
+    }
+
+    /**
+     * Returns the object the database uses for representing this transaction.
+     */
+    internal fun unboxAny(): Any {
         return txn
     }
 
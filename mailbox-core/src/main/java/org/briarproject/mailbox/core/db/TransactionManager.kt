@@ -19,8 +19,22 @@
 
 package org.briarproject.mailbox.core.db
 
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.withContext
+
 interface TransactionManager {
 
+    /**
+     * A dispatcher with a bounded number of threads reserved for database access.
+     * Coroutines should use it for any blocking database calls,
+     * so they don't block their own threads while waiting for locks.
+     * It is only available while the database is open.
+     *
+     * @throws DbClosedException if the database is closed.
+     */
+    val dispatcher: CoroutineDispatcher
+
     /**
      * Runs the given task within a read-only transaction and returns its result.
      */
@@ -33,4 +47,35 @@ interface TransactionManager {
     @Throws(DbException::class)
     fun <R> write(task: (Transaction) -> R): R
 
+    /**
+     * Like [read], but switches to the [dispatcher] for the whole transaction, so the calling
+     * coroutine's thread is free for other coroutines. This is only a dispatcher hop: waiting
+     * for locks or a connection and running the task still block one of the dispatcher's
+     * threads, so at most as many transactions can wait as the dispatcher has threads.
+     */
+    @Throws(DbException::class)
+    suspend fun <R> readOnDispatcher(task: (Transaction) -> R): R {
+        return withContext(dispatcher) { read(task) }
+    }
+
+    /**
+     * Like [write], but switches to the [dispatcher] for the whole transaction.
+     * See [readOnDispatcher] for what does and doesn't block.
+     */
+    @Throws(DbException::class)
+    suspend fun <R> writeOnDispatcher(task: (Transaction) -> R): R {
+        return withContext(dispatcher) { write(task) }
+    }
+
+    /**
+     * Queues the given task to run within a read/write transaction shared with other queued
+     * tasks, so they all get committed at once. The returned [Deferred] completes with the
+     * task's result after the transaction has been committed, or with an exception if the task
+     * or committing the transaction failed. Changes made by a failing task get rolled back
+     * without affecting the other tasks.
+     *
+     * This method doesn't block, the task runs later on another thread.
+     */
+    fun <R> writeAsync(task: (Transaction) -> R): Deferred<R>
+
 }
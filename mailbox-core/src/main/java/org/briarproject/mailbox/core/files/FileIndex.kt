@@ -0,0 +1,185 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.files
+
+import org.briarproject.mailbox.core.util.LogUtils.info
+import org.slf4j.LoggerFactory.getLogger
+import java.io.File
+import java.util.Collections.newSetFromMap
+import java.util.TreeSet
+import java.util.concurrent.ConcurrentHashMap
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * A file in a folder as tracked by the [FileIndex].
+ */
+data class IndexedFile(val name: String, val size: Long, val time: Long)
+
+/**
+ * Keeps an in-memory copy of the files in each folder, so that listing a folder doesn't need to
+ * access the filesystem. A folder gets read from disk the first time it is needed. After that,
+ * the index gets updated whenever files are added or deleted through the [FileRouteManager] and
+ * the [FileManager], and gets reconciled with the disk via [reconcile].
+ */
+@ThreadSafe
+@Singleton
+class FileIndex @Inject constructor(
+    private val fileProvider: FileProvider,
+) {
+
+    private companion object {
+        private val LOG = getLogger(FileIndex::class.java)
+    }
+
+    private val folders = ConcurrentHashMap<String, Folder>()
+
+    /**
+     * The IDs of the folders that contain at least one file.
+     * Only complete once [allFoldersLoaded] is true.
+     */
+    private val nonEmptyFolders: MutableSet<String> = newSetFromMap(ConcurrentHashMap())
+
+    @Volatile
+    private var allFoldersLoaded = false
+
+    /**
+     * Returns the files in the given folder in ascending order of their time.
+     */
+    fun listFiles(folderId: String): List<IndexedFile> = getFolder(folderId).list()
+
+    /**
+     * Returns the file with the given [fileId] in the given folder or null if there is none.
+     */
+    fun getFile(folderId: String, fileId: String): IndexedFile? = getFolder(folderId).get(fileId)
+
+    /**
+     * Returns the IDs of all folders that contain at least one file. The first call reads all
+     * folders from disk, later calls are answered from memory.
+     */
+    fun getNonEmptyFolderIds(): Set<String> {
+        if (!allFoldersLoaded) {
+            fileProvider.folderRoot.listFiles()?.forEach { dir ->
+                if (dir.isDirectory) getFolder(dir.name)
+            }
+            allFoldersLoaded = true
+        }
+        return HashSet(nonEmptyFolders)
+    }
+
+    /**
+     * Call this after the given [file] has been moved into the folder with the given [folderId].
+     */
+    fun onFileAdded(folderId: String, file: File, size: Long) {
+        getFolder(folderId).add(IndexedFile(file.name, size, file.lastModified()))
+    }
+
+    /**
+     * Call this after the file with the given [fileId] has been deleted from the folder with the
+     * given [folderId].
+     */
+    fun onFileDeleted(folderId: String, fileId: String) {
+        folders[folderId]?.remove(fileId)
+    }
+
+    /**
+     * Call this after all files have been deleted.
+     */
+    fun clear() {
+        folders.clear()
+        nonEmptyFolders.clear()
+        allFoldersLoaded = false
+    }
+
+    /**
+     * Re-reads all folders that have been loaded from disk,
+     * to pick up changes that didn't happen through the mailbox.
+     */
+    fun reconcile() {
+        var changed = 0
+        folders.forEach { (folderId, folder) ->
+            if (folder.reload(fileProvider.getFolder(folderId))) changed++
+        }
+        if (allFoldersLoaded) fileProvider.folderRoot.listFiles()?.forEach { dir ->
+            if (dir.isDirectory && !folders.containsKey(dir.name)) {
+                getFolder(dir.name)
+                changed++
+            }
+        }
+        LOG.info { "Reconciled file index, $changed of ${folders.size} folders changed" }
+    }
+
+    private fun getFolder(folderId: String): Folder = folders.getOrPut(folderId) {
+        Folder(folderId).apply { reload(fileProvider.getFolder(folderId)) }
+    }
+
+    @ThreadSafe
+    private inner class Folder(private val id: String) {
+
+        @GuardedBy("this")
+        private val byName = HashMap<String, IndexedFile>()
+
+        @GuardedBy("this")
+        private val byTime = TreeSet(compareBy<IndexedFile>({ it.time }, { it.name }))
+
+        @Synchronized
+        fun list(): List<IndexedFile> = ArrayList(byTime)
+
+        @Synchronized
+        fun get(name: String): IndexedFile? = byName[name]
+
+        @Synchronized
+        fun add(file: IndexedFile) {
+            byName.put(file.name, file)?.let { byTime.remove(it) }
+            byTime.add(file)
+            nonEmptyFolders.add(id)
+        }
+
+        @Synchronized
+        fun remove(name: String) {
+            byName.remove(name)?.let { byTime.remove(it) }
+            if (byName.isEmpty()) nonEmptyFolders.remove(id)
+        }
+
+        /**
+         * Replaces the content of this folder with what is on disk. The disk is listed while
+         * holding the lock, so files added or deleted concurrently are applied afterwards.
+         *
+         * @return true if the content changed.
+         */
+        @Synchronized
+        fun reload(dir: File): Boolean {
+            val files = dir.listFiles() ?: emptyArray()
+            var changed = files.size != byName.size
+            val names = HashSet<String>()
+            files.forEach { f ->
+                names.add(f.name)
+                if (!byName.containsKey(f.name)) {
+                    add(IndexedFile(f.name, f.length(), f.lastModified()))
+                    changed = true
+                }
+            }
+            byName.keys.filter { it !in names }.forEach { remove(it) }
+            return changed
+        }
+    }
+}
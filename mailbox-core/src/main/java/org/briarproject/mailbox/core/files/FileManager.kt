@@ -19,17 +19,36 @@
 
 package org.briarproject.mailbox.core.files
 
+import io.ktor.http.ContentType
+import io.ktor.http.HttpHeaders
 import io.ktor.http.HttpStatusCode
+import io.ktor.http.RangeUnits
+import io.ktor.http.content.OutgoingContent
+import io.ktor.http.headersOf
 import io.ktor.server.application.ApplicationCall
 import io.ktor.server.auth.principal
 import io.ktor.server.plugins.BadRequestException
-import io.ktor.server.request.receiveStream
+import io.ktor.server.request.header
+import io.ktor.server.request.receiveChannel
+import io.ktor.server.response.header
 import io.ktor.server.response.respond
+import io.ktor.server.response.respondBytesWriter
 import io.ktor.server.response.respondFile
+import io.ktor.util.cio.readChannel
+import io.ktor.utils.io.ByteReadChannel
+import io.ktor.utils.io.ByteWriteChannel
+import io.ktor.utils.io.pool.DirectByteBufferPool
+import io.ktor.utils.io.pool.useInstance
+import io.ktor.utils.io.writeFully
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.channels.ClosedReceiveChannelException
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.withContext
-import org.briarproject.mailbox.core.db.Database
 import org.briarproject.mailbox.core.db.DatabaseConfig
+import org.briarproject.mailbox.core.event.EventBus
 import org.briarproject.mailbox.core.server.AuthException
 import org.briarproject.mailbox.core.server.AuthManager
 import org.briarproject.mailbox.core.server.MailboxPrincipal
@@ -38,10 +57,17 @@ import org.briarproject.mailbox.core.setup.WipeManager
 import org.briarproject.mailbox.core.system.Clock
 import org.briarproject.mailbox.core.system.InvalidIdException
 import org.briarproject.mailbox.core.system.RandomIdManager
+import org.briarproject.mailbox.core.util.StringUtils.fromHexString
 import org.slf4j.LoggerFactory.getLogger
-import java.io.InputStream
-import java.io.OutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.channels.FileChannel
 import java.util.concurrent.TimeUnit.DAYS
+import java.util.concurrent.TimeUnit.SECONDS
 import javax.inject.Inject
 
 private val LOG = getLogger(FileManager::class.java)
@@ -52,8 +78,105 @@ internal const val MAX_FILE_SIZE = 1024 * 1024
  */
 private val STALE_FILE_DELETION_AGE = DAYS.toMillis(30)
 
+/**
+ * The header giving the offset at which a request appends to a resumable upload.
+ */
+internal const val UPLOAD_OFFSET_HEADER = "Upload-Offset"
+
+/**
+ * The longest time in seconds a client can wait for new files when listing files or folders.
+ */
+private const val MAX_WAIT_SECONDS = 60L
+
+/**
+ * The number of bytes of files sent by [FileRouteManager.getFiles] if the client doesn't say.
+ */
+private const val DEFAULT_BATCH_BYTES = 10L * MAX_FILE_SIZE
+
+/**
+ * The maximum number of files in a single batch request.
+ */
+internal const val MAX_BATCH_FILES = 100
+
+/**
+ * The maximum number of file IDs in the query of a single batch request.
+ * Their query needs to fit into the request line, which Netty limits to 4096 bytes.
+ */
+internal const val MAX_BATCH_IDS = 50
+
+/**
+ * The size of the buffers used for receiving uploads and sending batches of files.
+ */
+private const val BUFFER_SIZE = 64 * 1024
+
+/**
+ * The number of buffers kept for reuse. More concurrent transfers allocate new buffers.
+ */
+private const val BUFFER_POOL_SIZE = 32
+
+/**
+ * Direct buffers, so that moving bytes between them and a [FileChannel] doesn't need another copy.
+ */
+private val bufferPool = DirectByteBufferPool(BUFFER_POOL_SIZE, BUFFER_SIZE)
+
+/**
+ * Copies everything from [channel] into [file] and returns the number of bytes copied.
+ * If [append] is true, the bytes are appended to the file, otherwise the file is overwritten.
+ * If [length] is given, only that many bytes are copied and the rest is left in [channel].
+ *
+ * While waiting for more bytes, this suspends instead of blocking a thread,
+ * so that slow uploads don't occupy threads. Only the file operations run on [Dispatchers.IO].
+ * Bytes that have been written before an error stay in the file.
+ *
+ * @throws BadRequestException if more than [maxBytes] bytes are received.
+ * @throws EOFException if [channel] ends before [length] bytes were received.
+ */
+internal suspend fun receiveToFile(
+    channel: ByteReadChannel,
+    file: File,
+    append: Boolean = false,
+    maxBytes: Long = MAX_FILE_SIZE.toLong(),
+    length: Long? = null,
+): Long {
+    val fileChannel = withContext(Dispatchers.IO) { FileOutputStream(file, append).channel }
+    try {
+        return bufferPool.useInstance { buffer ->
+            var bytesCopied = 0L
+            while (true) {
+                if (length != null) {
+                    val remaining = length - bytesCopied
+                    if (remaining == 0L) break
+                    buffer.limit(minOf(buffer.capacity().toLong(), remaining).toInt())
+                }
+                if (channel.readAvailable(buffer) < 0) {
+                    if (length == null) break
+                    throw EOFException("Expected $length bytes, received $bytesCopied")
+                }
+                // Collect what has already arrived, to write fewer but larger chunks
+                while (buffer.hasRemaining() && channel.availableForRead > 0) {
+                    channel.readAvailable(buffer)
+                }
+                bytesCopied += buffer.position()
+                if (bytesCopied > maxBytes) {
+                    throw BadRequestException("File larger than allowed.")
+                }
+                buffer.flip()
+                withContext(Dispatchers.IO) {
+                    while (buffer.hasRemaining()) fileChannel.write(buffer)
+                }
+                buffer.clear()
+            }
+            bytesCopied
+        }
+    } finally {
+        fileChannel.close()
+    }
+}
+
 class FileManager @Inject constructor(
     private val fileProvider: FileProvider,
+    private val fileIndex: FileIndex,
+    private val uploadSessionManager: UploadSessionManager,
     private val dbConfig: DatabaseConfig,
     private val clock: Clock,
 ) {
@@ -80,6 +203,8 @@ class FileManager @Inject constructor(
             allDeleted = false
             LOG.warn("Could not delete folders.")
         }
+        fileIndex.clear()
+        uploadSessionManager.clear()
         return allDeleted
     }
 
@@ -88,17 +213,23 @@ class FileManager @Inject constructor(
         val now = clock.currentTimeMillis()
         fileProvider.folderRoot.listFiles()?.forEach { folder ->
             if (folder.isDirectory) folder.listFiles()?.forEach { file ->
-                if (now - file.lastModified() > minAge) file.delete()
+                if (now - file.lastModified() > minAge && file.delete()) {
+                    fileIndex.onFileDeleted(folder.name, file.name)
+                }
             }
         }
+        fileIndex.reconcile()
     }
 }
 
 class FileRouteManager @Inject constructor(
-    private val db: Database,
     private val authManager: AuthManager,
     private val fileProvider: FileProvider,
+    private val fileIndex: FileIndex,
+    private val uploadSessionManager: UploadSessionManager,
+    private val newFileNotifier: NewFileNotifier,
     private val randomIdManager: RandomIdManager,
+    private val eventBus: EventBus,
 ) {
     /**
      * Used by contacts to send files to the owner and by the owner to send files to contacts.
@@ -114,58 +245,201 @@ class FileRouteManager @Inject constructor(
         randomIdManager.assertIsRandomId(folderId)
         authManager.assertCanPostToFolder(principal, folderId)
 
+        receiveFile(call.receiveChannel(), folderId)
+        call.respond(HttpStatusCode.OK)
+    }
+
+    /**
+     * Used by contacts and the owner to send several files to [folderId] in one request,
+     * instead of one request per file with [postFile].
+     *
+     * Each file in the request body is its length in bytes as a big-endian 64 bit integer,
+     * followed by the file's bytes. Every file gets stored on its own, so some can succeed while
+     * others fail. If the body is malformed, a file is larger than [MAX_FILE_SIZE], a file can't
+     * be stored or there are more than [MAX_BATCH_FILES] files, the rest of the body is not
+     * processed. In particular, the bytes of a file that is too large are not read.
+     *
+     * Checks if the authenticated [MailboxPrincipal] is allowed to upload to given [folderId].
+     * Responds with 200 (OK) with the ID (if stored) and a status code for each file in JSON.
+     */
+    @Throws(AuthException::class, InvalidIdException::class)
+    suspend fun postFiles(call: ApplicationCall, folderId: String) {
+        val principal: MailboxPrincipal? = call.principal()
+        randomIdManager.assertIsRandomId(folderId)
+        authManager.assertCanPostToFolder(principal, folderId)
+
+        val channel = call.receiveChannel()
+        val results = ArrayList<PartResponse>()
+        while (true) {
+            channel.awaitContent()
+            if (channel.isClosedForRead) break
+            if (results.size == MAX_BATCH_FILES) {
+                results.add(PartResponse(null, HttpStatusCode.PayloadTooLarge.value))
+                break
+            }
+            val length = try {
+                channel.readLong()
+            } catch (e: ClosedReceiveChannelException) {
+                results.add(PartResponse(null, HttpStatusCode.BadRequest.value))
+                break
+            }
+            if (length < 0) {
+                results.add(PartResponse(null, HttpStatusCode.BadRequest.value))
+                break
+            }
+            if (length > MAX_FILE_SIZE) {
+                // Reading that many bytes just to throw them away would let clients keep us busy
+                results.add(PartResponse(null, HttpStatusCode.PayloadTooLarge.value))
+                break
+            }
+            try {
+                val fileId = receiveFile(channel, folderId, length)
+                results.add(PartResponse(fileId, HttpStatusCode.OK.value))
+            } catch (e: EOFException) {
+                results.add(PartResponse(null, HttpStatusCode.BadRequest.value))
+                break
+            } catch (e: IOException) {
+                LOG.warn("Error storing file", e)
+                results.add(PartResponse(null, HttpStatusCode.InternalServerError.value))
+                break
+            }
+        }
+        call.respond(HttpStatusCode.OK, PartListResponse(results))
+    }
+
+    /**
+     * Stores a new file in [folderId] with what [channel] has, or with [length] bytes of it,
+     * and returns the file's ID. The file first gets written to a temporary file,
+     * so that it only becomes visible once complete.
+     */
+    private suspend fun receiveFile(
+        channel: ByteReadChannel,
+        folderId: String,
+        length: Long? = null,
+    ): String {
         val fileId = randomIdManager.getNewRandomId()
+        val tmpFile = withContext(Dispatchers.IO) { fileProvider.getTemporaryFile(fileId) }
+        val size = try {
+            receiveToFile(channel, tmpFile, length = length)
+        } catch (e: Exception) {
+            withContext(NonCancellable + Dispatchers.IO) { tmpFile.delete() }
+            throw e
+        }
         withContext(Dispatchers.IO) {
-            val tmpFile = fileProvider.getTemporaryFile(fileId)
-            tmpFile.outputStream().use { outputStream ->
-                call.receiveStream().use { inputStream ->
-                    try {
-                        copyFile(inputStream, outputStream)
-                    } catch (e: Exception) {
-                        tmpFile.delete()
-                        throw e
-                    }
-                }
-            }
             val file = fileProvider.getFile(folderId, fileId)
-            if (!tmpFile.renameTo(file)) error("Error moving file")
+            if (!tmpFile.renameTo(file)) throw IOException("Error moving file")
+            fileIndex.onFileAdded(folderId, file, size)
         }
+        eventBus.broadcast(FileAddedEvent(folderId, fileId))
+        return fileId
+    }
 
-        call.respond(HttpStatusCode.OK)
+    /**
+     * Used by contacts and the owner to start a resumable upload to [folderId],
+     * instead of sending the whole file with [postFile].
+     *
+     * Checks if the authenticated [MailboxPrincipal] is allowed to upload to given [folderId].
+     * Responds with 201 (Created) with the ID and the length of the new upload in JSON,
+     * or with 429 (Too Many Requests) if too many uploads to [folderId] are in progress.
+     */
+    @Throws(AuthException::class, InvalidIdException::class)
+    suspend fun createUpload(call: ApplicationCall, folderId: String) {
+        val principal: MailboxPrincipal? = call.principal()
+        randomIdManager.assertIsRandomId(folderId)
+        authManager.assertCanPostToFolder(principal, folderId)
+
+        val session = uploadSessionManager.createSession(folderId)
+        if (session == null) call.respond(HttpStatusCode.TooManyRequests)
+        else call.respond(HttpStatusCode.Created, UploadResponse(session.id, session.length))
     }
 
-    private fun copyFile(inputStream: InputStream, outputStream: OutputStream) {
-        var bytesCopied: Long = 0
-        val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
-        var bytes = inputStream.read(buffer)
-        while (bytes >= 0) {
-            outputStream.write(buffer, 0, bytes)
-            bytesCopied += bytes
-            if (bytesCopied > MAX_FILE_SIZE) {
-                throw BadRequestException("File larger than allowed.")
-            }
-            bytes = inputStream.read(buffer)
+    /**
+     * Used by contacts and the owner to find out how much of an upload has been received,
+     * e.g. after the connection broke while appending to it.
+     *
+     * Responds with 200 (OK) with the ID and the length of the upload in JSON.
+     */
+    @Throws(AuthException::class, InvalidIdException::class)
+    suspend fun getUpload(call: ApplicationCall, folderId: String, uploadId: String) {
+        val principal: MailboxPrincipal? = call.principal()
+        randomIdManager.assertIsRandomId(folderId)
+        randomIdManager.assertIsRandomId(uploadId)
+        authManager.assertCanPostToFolder(principal, folderId)
+
+        val session = uploadSessionManager.getSession(folderId, uploadId)
+        if (session == null) call.respond(HttpStatusCode.NotFound)
+        else call.respond(HttpStatusCode.OK, UploadResponse(session.id, session.length))
+    }
+
+    /**
+     * Used by contacts and the owner to append the request body to an upload.
+     *
+     * The [UPLOAD_OFFSET_HEADER] must be the current length of the upload,
+     * otherwise responds with 409 (Conflict) with the actual length.
+     * Responds with 200 (OK) with the ID and the new length of the upload in JSON.
+     */
+    @Throws(AuthException::class, InvalidIdException::class, BadRequestException::class)
+    suspend fun appendToUpload(call: ApplicationCall, folderId: String, uploadId: String) {
+        val principal: MailboxPrincipal? = call.principal()
+        randomIdManager.assertIsRandomId(folderId)
+        randomIdManager.assertIsRandomId(uploadId)
+        authManager.assertCanPostToFolder(principal, folderId)
+
+        val offset = call.request.header(UPLOAD_OFFSET_HEADER)?.toLongOrNull()
+            ?: throw BadRequestException("Missing or invalid $UPLOAD_OFFSET_HEADER header")
+        val session = uploadSessionManager.getSession(folderId, uploadId)
+        val length = try {
+            session?.let { uploadSessionManager.append(it, offset, call.receiveChannel()) }
+        } catch (e: UploadOffsetException) {
+            call.respond(HttpStatusCode.Conflict, UploadResponse(uploadId, e.length))
+            return
         }
+        if (length == null) call.respond(HttpStatusCode.NotFound)
+        else call.respond(HttpStatusCode.OK, UploadResponse(uploadId, length))
+    }
+
+    /**
+     * Used by contacts and the owner to finish an upload,
+     * which then appears in the folder like a file sent with [postFile].
+     *
+     * Responds with 200 (OK) if the upload was completed.
+     */
+    @Throws(AuthException::class, InvalidIdException::class)
+    suspend fun completeUpload(call: ApplicationCall, folderId: String, uploadId: String) {
+        val principal: MailboxPrincipal? = call.principal()
+        randomIdManager.assertIsRandomId(folderId)
+        randomIdManager.assertIsRandomId(uploadId)
+        authManager.assertCanPostToFolder(principal, folderId)
+
+        val session = uploadSessionManager.getSession(folderId, uploadId)
+        val fileId = session?.let { uploadSessionManager.complete(it) }
+        if (fileId == null) call.respond(HttpStatusCode.NotFound)
+        else call.respond(HttpStatusCode.OK)
     }
 
     /**
      * Used by owner and contacts to list their files to retrieve.
      *
      * Checks if the authenticated [MailboxPrincipal] is allowed to download from [folderId].
-     * Responds with 200 (OK) with the list of files in JSON.
+     * Responds with 200 (OK) with the list of files in JSON,
+     * in ascending order of their timestamps.
+     *
+     * If the folder is empty and the `wait` query parameter gives a number of seconds,
+     * the response gets delayed until a file arrives or that time has passed.
      */
+    @Throws(AuthException::class, InvalidIdException::class, BadRequestException::class)
     suspend fun listFiles(call: ApplicationCall, folderId: String) {
         val principal: MailboxPrincipal? = call.principal()
         randomIdManager.assertIsRandomId(folderId)
         authManager.assertCanDownloadFromFolder(principal, folderId)
 
-        val fileListResponse = withContext(Dispatchers.IO) {
-            val list = ArrayList<FileResponse>()
-            fileProvider.getFolder(folderId).listFiles()?.forEach { file ->
-                list.add(FileResponse(file.name, file.lastModified()))
-            }
-            FileListResponse(list)
+        val waitMillis = getWaitMillis(call)
+        if (waitMillis > 0) newFileNotifier.awaitFile(listOf(folderId), waitMillis) {
+            withContext(Dispatchers.IO) { fileIndex.listFiles(folderId) }.isNotEmpty()
         }
+        // Only the first listing of a folder needs to read it from disk
+        val files = withContext(Dispatchers.IO) { fileIndex.listFiles(folderId) }
+        val fileListResponse = FileListResponse(files.map { FileResponse(it.name, it.time) })
         call.respond(HttpStatusCode.OK, fileListResponse)
     }
 
@@ -174,6 +448,11 @@ class FileRouteManager @Inject constructor(
      *
      * Checks if the authenticated [MailboxPrincipal] is allowed to download from $folderId
      * Returns 200 (OK) if successful with the files' bytes in the response body
+     *
+     * Supports resuming interrupted downloads: a single byte range requested via the `Range`
+     * header gets answered with 206 (Partial Content) and only those bytes,
+     * unless an `If-Range` header doesn't match the file's strong ETag. The ETag is derived from
+     * the file's ID and its size and modification time on disk.
      */
     @Throws(AuthException::class, InvalidIdException::class)
     suspend fun getFile(call: ApplicationCall, folderId: String, fileId: String) {
@@ -183,8 +462,114 @@ class FileRouteManager @Inject constructor(
         authManager.assertCanDownloadFromFolder(principal, folderId)
 
         val file = fileProvider.getFile(folderId, fileId)
-        if (file.isFile) call.respondFile(file)
-        else call.respond(HttpStatusCode.NotFound)
+        // Taken from disk rather than the index, whose times may differ between restarts
+        val stat = withContext(Dispatchers.IO) {
+            if (file.isFile) Pair(file.length(), file.lastModified()) else null
+        }
+        if (stat == null) {
+            call.respond(HttpStatusCode.NotFound)
+            return
+        }
+        val (size, lastModified) = stat
+        // Files never change after being uploaded, so this identifies the exact bytes
+        val etag = "\"$fileId-${size.toString(16)}-${lastModified.toString(16)}\""
+        call.response.header(HttpHeaders.ETag, etag)
+        call.response.header(HttpHeaders.AcceptRanges, RangeUnits.Bytes.unitToken)
+
+        val ifRange = call.request.header(HttpHeaders.IfRange)
+        val rangeHeader = if (ifRange == null || ifRange == etag) {
+            call.request.header(HttpHeaders.Range)
+        } else null
+        when (val request = RangeRequest.parse(rangeHeader, size)) {
+            is RangeRequest.Full -> call.respondFile(file)
+            is RangeRequest.Partial -> call.respond(PartialFileContent(file, request.range, size))
+            is RangeRequest.Unsatisfiable -> {
+                call.response.header(HttpHeaders.ContentRange, "bytes */$size")
+                call.respond(HttpStatusCode.RequestedRangeNotSatisfiable)
+            }
+        }
+    }
+
+    /**
+     * Returns the file as tracked by the [FileIndex], or as found on disk if the index doesn't
+     * know it yet, or null if it doesn't exist.
+     */
+    private fun getIndexedFile(folderId: String, fileId: String): IndexedFile? {
+        val file = fileProvider.getFile(folderId, fileId)
+        return if (file.isFile) {
+            fileIndex.getFile(folderId, fileId)
+                ?: IndexedFile(fileId, file.length(), file.lastModified())
+        } else null
+    }
+
+    /**
+     * Used by owner and contacts to retrieve several files from [folderId] in one response,
+     * saving a round trip per file.
+     *
+     * The files are those given by the comma-separated `ids` query parameter, of which there
+     * must not be more than [MAX_BATCH_IDS]. Without it, these are the oldest files in the
+     * folder. Either way, only as many files are sent as fit into the number of bytes given by
+     * the `maxBytes` query parameter, but at least one, and at most [MAX_BATCH_FILES].
+     * Checks if the authenticated [MailboxPrincipal] is allowed to download from [folderId].
+     * Responds with 200 (OK) with each file as its 32 byte ID, followed by its length as a
+     * big-endian 64 bit integer and its bytes. Files that don't exist are left out.
+     * The files are streamed from disk without buffering the response.
+     */
+    @Throws(AuthException::class, InvalidIdException::class, BadRequestException::class)
+    suspend fun getFiles(call: ApplicationCall, folderId: String) {
+        val principal: MailboxPrincipal? = call.principal()
+        randomIdManager.assertIsRandomId(folderId)
+        authManager.assertCanDownloadFromFolder(principal, folderId)
+
+        val ids = call.request.queryParameters["ids"]?.split(',')?.distinct()
+        if (ids != null) {
+            if (ids.size > MAX_BATCH_IDS) throw BadRequestException("Too many ids")
+            ids.forEach { randomIdManager.assertIsRandomId(it) }
+        }
+        val maxBytes = call.request.queryParameters["maxBytes"]?.let {
+            it.toLongOrNull() ?: throw BadRequestException("Invalid maxBytes")
+        } ?: DEFAULT_BATCH_BYTES
+        val files = withContext(Dispatchers.IO) {
+            ids?.mapNotNull { getIndexedFile(folderId, it) } ?: fileIndex.listFiles(folderId)
+        }
+        var bytes = 0L
+        val fileIds = files.take(MAX_BATCH_FILES).takeWhile { file ->
+            bytes += file.size
+            bytes <= maxBytes || bytes == file.size
+        }.map { it.name }
+        call.respondBytesWriter(ContentType.Application.OctetStream, HttpStatusCode.OK) {
+            fileIds.forEach { fileId -> writeFile(fileProvider.getFile(folderId, fileId), fileId) }
+        }
+    }
+
+    /**
+     * Writes the ID, length and bytes of the given [file], unless it doesn't exist.
+     */
+    private suspend fun ByteWriteChannel.writeFile(file: File, fileId: String) {
+        val input = withContext(Dispatchers.IO) {
+            try {
+                FileInputStream(file)
+            } catch (e: FileNotFoundException) {
+                null
+            }
+        } ?: return
+        input.use {
+            val fileChannel = input.channel
+            var remaining = withContext(Dispatchers.IO) { fileChannel.size() }
+            writeFully(fromHexString(fileId))
+            writeLong(remaining)
+            bufferPool.useInstance { buffer ->
+                while (remaining > 0) {
+                    if (buffer.capacity() > remaining) buffer.limit(remaining.toInt())
+                    val read = withContext(Dispatchers.IO) { fileChannel.read(buffer) }
+                    if (read < 0) throw IOException("Unexpected end of file")
+                    remaining -= read
+                    buffer.flip()
+                    writeFully(buffer)
+                    buffer.clear()
+                }
+            }
+        }
     }
 
     /**
@@ -199,11 +584,45 @@ class FileRouteManager @Inject constructor(
         randomIdManager.assertIsRandomId(fileId)
         authManager.assertCanDownloadFromFolder(principal, folderId)
 
+        call.respond(withContext(Dispatchers.IO) { deleteFile(folderId, fileId) })
+    }
+
+    /**
+     * Used by owner and contacts to delete several files from [folderId] in one request,
+     * saving a round trip per file.
+     *
+     * The files are given by the comma-separated `ids` query parameter.
+     * Checks if the authenticated [MailboxPrincipal] is allowed to download from [folderId].
+     * Responds with 200 (OK) with the result for each file in JSON, using the status codes
+     * [deleteFile] would have responded with for each file.
+     */
+    @Throws(AuthException::class, InvalidIdException::class, BadRequestException::class)
+    suspend fun deleteFiles(call: ApplicationCall, folderId: String) {
+        val principal: MailboxPrincipal? = call.principal()
+        randomIdManager.assertIsRandomId(folderId)
+        authManager.assertCanDownloadFromFolder(principal, folderId)
+
+        val ids = call.request.queryParameters["ids"]
+            ?: throw BadRequestException("Missing ids")
+        val fileIds = ids.split(',').distinct().onEach { randomIdManager.assertIsRandomId(it) }
+        val results = coroutineScope {
+            fileIds.map { fileId ->
+                async(Dispatchers.IO) {
+                    DeleteResponse(fileId, deleteFile(folderId, fileId).value)
+                }
+            }.awaitAll()
+        }
+        call.respond(HttpStatusCode.OK, DeleteListResponse(results))
+    }
+
+    private fun deleteFile(folderId: String, fileId: String): HttpStatusCode {
         val file = fileProvider.getFile(folderId, fileId)
-        if (file.isFile) {
-            if (file.delete()) call.respond(HttpStatusCode.OK)
-            else call.respond(HttpStatusCode.InternalServerError)
-        } else call.respond(HttpStatusCode.NotFound)
+        return if (file.isFile) {
+            if (file.delete()) {
+                fileIndex.onFileDeleted(folderId, fileId)
+                HttpStatusCode.OK
+            } else HttpStatusCode.InternalServerError
+        } else HttpStatusCode.NotFound
     }
 
     /**
@@ -211,28 +630,68 @@ class FileRouteManager @Inject constructor(
      *
      * Checks if provided auth token is the owner.
      * Responds with 200 (OK) with the list of folders with files in JSON.
+     *
+     * If there are no such folders and the `wait` query parameter gives a number of seconds,
+     * the response gets delayed until a file arrives or that time has passed.
      */
+    @Throws(AuthException::class, BadRequestException::class)
     suspend fun listFoldersWithFiles(call: ApplicationCall) {
         val principal: MailboxPrincipal? = call.principal()
         authManager.assertIsOwner(principal)
 
-        val folderListResponse = withContext(Dispatchers.IO) {
-            val list = ArrayList<FolderResponse>()
-            val contacts = db.read { txn -> db.getContacts(txn) }
-            contacts.forEach { c ->
-                val id = c.outboxId
-                val folder = fileProvider.getFolder(id)
-                if (folder.listFiles()?.isNotEmpty() == true) {
-                    list.add(FolderResponse(id))
-                }
-            }
-            FolderListResponse(list)
+        // Folders of removed contacts may still contain files, but the owner can't access them
+        val ownerFolderIds = authManager.getOwnerDownloadFolderIds()
+        val waitMillis = getWaitMillis(call)
+        if (waitMillis > 0) newFileNotifier.awaitFile(ownerFolderIds, waitMillis) {
+            getNonEmptyFolderIds(ownerFolderIds).isNotEmpty()
         }
-        call.respond(folderListResponse)
+        val list = getNonEmptyFolderIds(ownerFolderIds).map { FolderResponse(it) }
+        call.respond(FolderListResponse(list))
     }
+
+    private suspend fun getNonEmptyFolderIds(folderIds: Set<String>): List<String> {
+        // Only the first call needs to read the folders from disk
+        val nonEmptyFolderIds = withContext(Dispatchers.IO) { fileIndex.getNonEmptyFolderIds() }
+        return nonEmptyFolderIds.filter { it in folderIds }
+    }
+
+    /**
+     * Returns how long the client wants to wait for new files, in milliseconds,
+     * as given by the optional `wait` query parameter in seconds, at most [MAX_WAIT_SECONDS].
+     */
+    @Throws(BadRequestException::class)
+    private fun getWaitMillis(call: ApplicationCall): Long {
+        val wait = call.request.queryParameters["wait"] ?: return 0
+        val seconds = wait.toLongOrNull()
+        if (seconds == null || seconds < 0) throw BadRequestException("Invalid wait: $wait")
+        return SECONDS.toMillis(minOf(seconds, MAX_WAIT_SECONDS))
+    }
+}
+
+/**
+ * The given [range] of the bytes of [file], which has [size] bytes in total.
+ */
+private class PartialFileContent(
+    private val file: File,
+    private val range: LongRange,
+    size: Long,
+) : OutgoingContent.ReadChannelContent() {
+    override val status = HttpStatusCode.PartialContent
+    override val contentType = ContentType.Application.OctetStream
+    override val contentLength = range.last - range.first + 1
+    override val headers = headersOf(
+        HttpHeaders.ContentRange, "bytes ${range.first}-${range.last}/$size"
+    )
+
+    override fun readFrom(): ByteReadChannel = file.readChannel(range.first, range.last)
 }
 
+data class UploadResponse(val id: String, val length: Long)
 data class FileListResponse(val files: List<FileResponse>)
 data class FileResponse(val name: String, val time: Long)
+data class PartListResponse(val files: List<PartResponse>)
+data class PartResponse(val id: String?, val status: Int)
+data class DeleteListResponse(val files: List<DeleteResponse>)
+data class DeleteResponse(val id: String, val status: Int)
 data class FolderListResponse(val folders: List<FolderResponse>)
 data class FolderResponse(val id: String)
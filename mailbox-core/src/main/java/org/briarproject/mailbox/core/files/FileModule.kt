@@ -21,6 +21,7 @@ package org.briarproject.mailbox.core.files
 
 import dagger.Module
 import dagger.Provides
+import org.briarproject.mailbox.core.event.EventBus
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager
 import javax.inject.Singleton
 
@@ -36,4 +37,12 @@ class FileModule {
             lifecycleManager.registerService(it)
         }
     }
+
+    @Provides
+    @Singleton
+    fun provideNewFileNotifier(eventBus: EventBus): NewFileNotifier {
+        return NewFileNotifier().also {
+            eventBus.addListener(it)
+        }
+    }
 }
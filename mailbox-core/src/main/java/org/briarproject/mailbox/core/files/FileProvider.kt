@@ -31,6 +31,11 @@ interface FileProvider {
      */
     val root: File
     val folderRoot: File
+
+    /**
+     * The directory holding the files returned by [getTemporaryFile].
+     */
+    val tempFilesRoot: File
     fun getTemporaryFile(fileId: String): File
     fun getFolder(folderId: String): File
     fun getFile(folderId: String, fileId: String): File
@@ -0,0 +1,81 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.files
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.withTimeoutOrNull
+import org.briarproject.mailbox.core.event.Event
+import org.briarproject.mailbox.core.event.EventBus
+import org.briarproject.mailbox.core.event.EventListener
+import javax.annotation.concurrent.GuardedBy
+import javax.annotation.concurrent.ThreadSafe
+
+/**
+ * Lets requests wait for files to arrive in folders, so that clients can long-poll instead of
+ * polling repeatedly. Waiting suspends instead of blocking, so idle waiters don't occupy threads.
+ * Waiters get woken up by [FileAddedEvent]s, so it needs to be registered with the [EventBus].
+ */
+@ThreadSafe
+class NewFileNotifier : EventListener {
+
+    private val lock = Any()
+
+    @GuardedBy("lock")
+    private val waiters = HashMap<String, MutableSet<CompletableDeferred<Unit>>>()
+
+    override fun eventOccurred(e: Event) {
+        if (e is FileAddedEvent) {
+            val folderWaiters = synchronized(lock) { waiters.remove(e.folderId) } ?: return
+            folderWaiters.forEach { it.complete(Unit) }
+        }
+    }
+
+    /**
+     * Suspends until a file gets added to one of the given [folderIds] or [timeout] milliseconds
+     * have passed. Returns immediately if [hasFiles] returns true, which gets called after
+     * starting to wait, so that files arriving in between aren't missed.
+     */
+    internal suspend fun awaitFile(
+        folderIds: Collection<String>,
+        timeout: Long,
+        hasFiles: suspend () -> Boolean,
+    ) {
+        val waiter = CompletableDeferred<Unit>()
+        // The given collection may change while waiting
+        val ids = folderIds.toList()
+        synchronized(lock) {
+            ids.forEach { waiters.getOrPut(it) { HashSet() }.add(waiter) }
+        }
+        try {
+            if (!hasFiles()) withTimeoutOrNull(timeout) { waiter.await() }
+        } finally {
+            synchronized(lock) {
+                ids.forEach { folderId ->
+                    val folderWaiters = waiters[folderId]
+                    if (folderWaiters != null && folderWaiters.remove(waiter) &&
+                        folderWaiters.isEmpty()
+                    ) {
+                        waiters.remove(folderId)
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.files
+
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * How to answer a request for a file, based on its `Range` header.
+ * Only single byte ranges are supported, other requests get the full file.
+ */
+internal sealed class RangeRequest {
+
+    /**
+     * Respond with the full file.
+     */
+    object Full : RangeRequest()
+
+    /**
+     * Respond with the given bytes of the file only.
+     */
+    class Partial(val range: LongRange) : RangeRequest()
+
+    /**
+     * None of the requested bytes exist, respond with 416 (Range Not Satisfiable).
+     */
+    object Unsatisfiable : RangeRequest()
+
+    internal companion object {
+
+        private const val BYTES_UNIT = "bytes="
+
+        /**
+         * Parses the given `Range` [header] for a file of the given [size].
+         */
+        fun parse(header: String?, size: Long): RangeRequest {
+            if (header == null || !header.startsWith(BYTES_UNIT)) return Full
+            val spec = header.substring(BYTES_UNIT.length).trim()
+            // Multiple ranges would need a multipart response, so send the full file instead
+            if (spec.contains(',')) return Full
+            val dash = spec.indexOf('-')
+            if (dash < 0) return Full
+            val first = spec.substring(0, dash).trim()
+            val last = spec.substring(dash + 1).trim()
+            if (first.isEmpty()) {
+                // A suffix range, requesting the last bytes of the file
+                val suffix = last.toLongOrNull() ?: return Full
+                if (suffix <= 0 || size == 0L) return Unsatisfiable
+                return Partial(max(0, size - suffix) until size)
+            }
+            val start = first.toLongOrNull() ?: return Full
+            val end = if (last.isEmpty()) size - 1 else last.toLongOrNull() ?: return Full
+            if (start < 0 || end < start) return Full
+            if (start >= size) return Unsatisfiable
+            return Partial(start..min(end, size - 1))
+        }
+    }
+}
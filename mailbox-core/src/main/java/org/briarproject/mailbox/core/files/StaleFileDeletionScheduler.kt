@@ -24,6 +24,7 @@ import org.briarproject.mailbox.core.lifecycle.Service
 import org.briarproject.mailbox.core.system.TaskScheduler
 import java.util.concurrent.Executor
 import java.util.concurrent.TimeUnit.DAYS
+import java.util.concurrent.TimeUnit.HOURS
 import java.util.concurrent.TimeUnit.MILLISECONDS
 import java.util.concurrent.TimeUnit.MINUTES
 import javax.inject.Inject
@@ -38,18 +39,26 @@ private val STALE_FILE_DELETION_DELAY = MINUTES.toMillis(3)
  */
 private val STALE_FILE_DELETION_INTERVAL = DAYS.toMillis(1)
 
+/**
+ * Check for expired upload sessions after this many milliseconds have passed.
+ */
+private val UPLOAD_SESSION_EXPIRY_INTERVAL = HOURS.toMillis(1)
+
 interface StaleFileDeletionScheduler : Service
 
 /**
- * Schedules the deletion of stale files via the [FileManager] after the lifecycle has started.
+ * Schedules the deletion of stale files via the [FileManager]
+ * and of expired upload sessions via the [UploadSessionManager] after the lifecycle has started.
  */
 class StaleFileDeletionSchedulerImpl @Inject constructor(
     private val fileManager: FileManager,
+    private val uploadSessionManager: UploadSessionManager,
     private val taskScheduler: TaskScheduler,
     @IoExecutor private val ioExecutor: Executor,
 ) : StaleFileDeletionScheduler {
 
     private var task: TaskScheduler.Cancellable? = null
+    private var uploadTask: TaskScheduler.Cancellable? = null
 
     override fun startService() {
         // schedule the deletion of stale files
@@ -60,9 +69,17 @@ class StaleFileDeletionSchedulerImpl @Inject constructor(
             interval = STALE_FILE_DELETION_INTERVAL,
             unit = MILLISECONDS,
         )
+        uploadTask = taskScheduler.scheduleWithFixedDelay(
+            task = uploadSessionManager::expireSessions,
+            executor = ioExecutor,
+            delay = UPLOAD_SESSION_EXPIRY_INTERVAL,
+            interval = UPLOAD_SESSION_EXPIRY_INTERVAL,
+            unit = MILLISECONDS,
+        )
     }
 
     override fun stopService() {
         task?.cancel()
+        uploadTask?.cancel()
     }
 }
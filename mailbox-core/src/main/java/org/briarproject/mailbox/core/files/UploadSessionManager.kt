@@ -0,0 +1,226 @@
+/*
+ *     Briar Mailbox
+ *     Copyright (C) 2021-2022  The Briar Project
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Affero General Public License as
+ *     published by the Free Software Foundation, either version 3 of the
+ *     License, or (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Affero General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Affero General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.briarproject.mailbox.core.files
+
+import io.ktor.utils.io.ByteReadChannel
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import org.briarproject.mailbox.core.event.EventBus
+import org.briarproject.mailbox.core.system.Clock
+import org.briarproject.mailbox.core.system.RandomIdManager
+import org.briarproject.mailbox.core.util.LogUtils.info
+import org.slf4j.LoggerFactory.getLogger
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit.DAYS
+import javax.annotation.concurrent.ThreadSafe
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Upload sessions that haven't been used for this many milliseconds expire.
+ */
+internal val UPLOAD_SESSION_EXPIRY_AGE = DAYS.toMillis(1)
+
+/**
+ * The maximum number of uploads that can be in progress for the same folder at the same time.
+ */
+internal const val MAX_UPLOAD_SESSIONS_PER_FOLDER = 16
+
+/**
+ * An upload that can be continued after a connection broke, see [UploadSessionManager].
+ */
+internal class UploadSession(
+    val id: String,
+    val folderId: String,
+    val file: File,
+    now: Long,
+) {
+    /**
+     * Held while appending to or completing the upload.
+     */
+    val mutex = Mutex()
+
+    /**
+     * The number of bytes received so far.
+     */
+    @Volatile
+    var length = 0L
+
+    @Volatile
+    var lastUsed = now
+}
+
+/**
+ * Thrown when appending to an upload at a different offset than its current length.
+ */
+internal class UploadOffsetException(val length: Long) : Exception()
+
+/**
+ * Manages uploads that are sent in several requests, so that a broken connection only loses the
+ * bytes that were in flight instead of the whole file. An upload is created, then bytes are
+ * appended to it at its current length, which can be queried after a connection broke.
+ * Completing the upload moves it into its folder. Uploads that aren't completed expire.
+ */
+@ThreadSafe
+@Singleton
+class UploadSessionManager @Inject constructor(
+    private val fileProvider: FileProvider,
+    private val fileIndex: FileIndex,
+    private val randomIdManager: RandomIdManager,
+    private val eventBus: EventBus,
+    private val clock: Clock,
+) {
+
+    private companion object {
+        private val LOG = getLogger(UploadSessionManager::class.java)
+    }
+
+    private val sessions = ConcurrentHashMap<String, UploadSession>()
+
+    /**
+     * Starts a new upload to the given folder.
+     *
+     * @return the new session or null if [MAX_UPLOAD_SESSIONS_PER_FOLDER] uploads to the folder
+     * are in progress already.
+     */
+    internal suspend fun createSession(folderId: String): UploadSession? {
+        val id = randomIdManager.getNewRandomId()
+        val file = withContext(Dispatchers.IO) {
+            fileProvider.getTemporaryFile(id).apply { createNewFile() }
+        }
+        val session = UploadSession(id, folderId, file, clock.currentTimeMillis())
+        val added = synchronized(sessions) {
+            val inProgress = sessions.values.count { it.folderId == folderId }
+            if (inProgress < MAX_UPLOAD_SESSIONS_PER_FOLDER) sessions[id] = session
+            inProgress < MAX_UPLOAD_SESSIONS_PER_FOLDER
+        }
+        if (!added) withContext(Dispatchers.IO) { file.delete() }
+        return if (added) session else null
+    }
+
+    /**
+     * Returns the session with the given [uploadId] for the given folder
+     * or null if there is no such session.
+     */
+    internal fun getSession(folderId: String, uploadId: String): UploadSession? {
+        return sessions[uploadId]?.takeIf { it.folderId == folderId }
+    }
+
+    /**
+     * Appends everything from [channel] to the given [session], starting at [offset],
+     * and returns the new length of the upload.
+     *
+     * @return null if the session has completed or expired in the meantime.
+     * @throws UploadOffsetException if [offset] doesn't match the length of the upload.
+     */
+    internal suspend fun append(
+        session: UploadSession,
+        offset: Long,
+        channel: ByteReadChannel,
+    ): Long? {
+        session.mutex.withLock {
+            if (sessions[session.id] !== session) return null
+            if (offset != session.length) throw UploadOffsetException(session.length)
+            session.lastUsed = clock.currentTimeMillis()
+            try {
+                val maxBytes = MAX_FILE_SIZE - session.length
+                receiveToFile(channel, session.file, append = true, maxBytes = maxBytes)
+            } finally {
+                // Keep whatever made it to disk, the client can continue from there
+                session.length = withContext(NonCancellable + Dispatchers.IO) {
+                    session.file.length()
+                }
+                session.lastUsed = clock.currentTimeMillis()
+            }
+            return session.length
+        }
+    }
+
+    /**
+     * Moves the file of the given [session] into its folder and ends the session.
+     *
+     * If moving the file fails, the session continues, so completing it can be retried,
+     * or it expires together with its file.
+     *
+     * @return the ID of the new file or null if the session has completed or expired already.
+     */
+    @Throws(IOException::class)
+    internal suspend fun complete(session: UploadSession): String? {
+        session.mutex.withLock {
+            if (sessions[session.id] !== session) return null
+            val fileId = randomIdManager.getNewRandomId()
+            withContext(Dispatchers.IO) {
+                val file = fileProvider.getFile(session.folderId, fileId)
+                if (!session.file.renameTo(file)) throw IOException("Error moving file")
+                fileIndex.onFileAdded(session.folderId, file, session.length)
+            }
+            sessions.remove(session.id, session)
+            eventBus.broadcast(FileAddedEvent(session.folderId, fileId))
+            return fileId
+        }
+    }
+
+    /**
+     * Ends all sessions that haven't been used for [maxAge] milliseconds and deletes their files.
+     * Also deletes temporary files older than [maxAge] that don't belong to a session,
+     * e.g. those of sessions that got lost when the mailbox was restarted.
+     */
+    internal fun expireSessions(maxAge: Long = UPLOAD_SESSION_EXPIRY_AGE) {
+        val now = clock.currentTimeMillis()
+        var expired = 0
+        sessions.values.forEach { session ->
+            // A session that's being appended to is in use, even if it started long ago
+            if (now - session.lastUsed > maxAge && session.mutex.tryLock()) {
+                try {
+                    if (sessions.remove(session.id, session)) {
+                        session.file.delete()
+                        expired++
+                    }
+                } finally {
+                    session.mutex.unlock()
+                }
+            }
+        }
+        if (expired > 0) LOG.info { "Expired $expired upload sessions" }
+
+        val sessionFiles = sessions.values.mapTo(HashSet()) { it.file.name }
+        var orphaned = 0
+        fileProvider.tempFilesRoot.listFiles()?.forEach { file ->
+            if (file.name !in sessionFiles && now - file.lastModified() > maxAge &&
+                file.delete()
+            ) {
+                orphaned++
+            }
+        }
+        if (orphaned > 0) LOG.info { "Deleted $orphaned orphaned temporary files" }
+    }
+
+    /**
+     * Forgets all sessions. Call this after all files have been deleted.
+     */
+    internal fun clear() {
+        sessions.clear()
+    }
+}
@@ -42,10 +42,30 @@ interface LifecycleManager {
      * Returned by [lifecycleState]
      */
     enum class LifecycleState {
-        NOT_STARTED, STARTING, MIGRATING_DATABASE, COMPACTING_DATABASE, STARTING_SERVICES,
+        NOT_STARTED, STARTING, MIGRATING_DATABASE, STARTING_SERVICES,
         RUNNING, WIPING, STOPPING, STOPPED;
     }
 
+    /**
+     * The state of the database maintenance left by opening the database,
+     * see [Database.runMaintenance].
+     * Returned by [maintenanceStateFlow]
+     */
+    enum class MaintenanceState {
+        /**
+         * No maintenance is needed, or the lifecycle hasn't opened the database yet.
+         */
+        NOT_NEEDED,
+
+        /**
+         * Maintenance will run once services have been started.
+         */
+        PENDING,
+        RUNNING,
+        FINISHED,
+        FAILED,
+    }
+
     /**
      * Registers a hook to be called after the database is opened and before
      * [services][Service] are started. This method should be called
@@ -54,11 +74,22 @@ interface LifecycleManager {
     fun registerOpenDatabaseHook(hook: OpenDatabaseHook)
 
     /**
-     * Registers a [Service] to be started and stopped. This method
-     * should be called before [startServices].
+     * Registers a [Service] that doesn't depend on any other service to be started and stopped.
+     * This method should be called before [startServices].
+     *
+     * Services start and stop concurrently, unless they were registered with dependencies.
+     * There is no implicit order, so any service that relies on another one being started
+     * needs to be registered with its dependencies.
      */
     fun registerService(s: Service)
 
+    /**
+     * Registers a [Service] that only gets started once all of the given [dependencies] have
+     * been started, and that gets stopped before any of them. The dependencies must have been
+     * registered before. This method should be called before [startServices].
+     */
+    fun registerService(s: Service, dependencies: Collection<Service>)
+
     /**
      * Registers an [ExecutorService] to be shut down. This method
      * should be called before [startServices].
@@ -116,6 +147,12 @@ interface LifecycleManager {
     val lifecycleState: LifecycleState
     val lifecycleStateFlow: StateFlow<LifecycleState>
 
+    /**
+     * The state of database maintenance. Deferred maintenance runs while the lifecycle is
+     * [LifecycleState.RUNNING], so this is a sub-state of it.
+     */
+    val maintenanceStateFlow: StateFlow<MaintenanceState>
+
     interface OpenDatabaseHook {
         /**
          * Called when the database is being opened, before
@@ -19,10 +19,17 @@
 
 package org.briarproject.mailbox.core.lifecycle
 
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.runBlocking
 import org.briarproject.mailbox.core.db.Database
+import org.briarproject.mailbox.core.db.DatabaseConfig
+import org.briarproject.mailbox.core.db.DbClosedException
+import org.briarproject.mailbox.core.db.DbException
 import org.briarproject.mailbox.core.db.MigrationListener
-import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState.COMPACTING_DATABASE
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState.MIGRATING_DATABASE
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState.NOT_STARTED
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState.RUNNING
@@ -30,6 +37,10 @@ import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState.S
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState.STARTING_SERVICES
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState.STOPPING
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState.WIPING
+import org.briarproject.mailbox.core.lifecycle.LifecycleManager.MaintenanceState
+import org.briarproject.mailbox.core.lifecycle.LifecycleManager.MaintenanceState.FAILED
+import org.briarproject.mailbox.core.lifecycle.LifecycleManager.MaintenanceState.FINISHED
+import org.briarproject.mailbox.core.lifecycle.LifecycleManager.MaintenanceState.PENDING
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.OpenDatabaseHook
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.StartResult
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.StartResult.CLOCK_ERROR
@@ -48,6 +59,7 @@ import org.briarproject.mailbox.core.util.LogUtils.now
 import org.briarproject.mailbox.core.util.LogUtils.trace
 import org.briarproject.mailbox.core.util.LogUtils.warn
 import org.slf4j.LoggerFactory.getLogger
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArrayList
 import java.util.concurrent.CountDownLatch
 import java.util.concurrent.ExecutorService
@@ -58,6 +70,7 @@ import kotlin.concurrent.thread
 @ThreadSafe
 internal class LifecycleManagerImpl @Inject constructor(
     private val db: Database,
+    private val databaseConfig: DatabaseConfig,
     private val wipeManager: WipeManager,
     private val system: System,
     private val clock: Clock,
@@ -74,11 +87,13 @@ internal class LifecycleManagerImpl @Inject constructor(
     private val services: MutableList<Service>
     private val openDatabaseHooks: MutableList<OpenDatabaseHook>
     private val executors: MutableList<ExecutorService>
+    private val dependencies = ConcurrentHashMap<Service, List<Service>>()
 
     private val dbLatch = CountDownLatch(1)
     private val startupLatch = CountDownLatch(1)
     private val shutdownLatch = CountDownLatch(1)
     private val state = MutableStateFlow(NOT_STARTED)
+    private val maintenanceState = MutableStateFlow(MaintenanceState.NOT_NEEDED)
 
     private var wipeHook: WipeHook? = null
 
@@ -89,7 +104,14 @@ internal class LifecycleManagerImpl @Inject constructor(
     }
 
     override fun registerService(s: Service) {
+        registerService(s, emptyList())
+    }
+
+    override fun registerService(s: Service, dependencies: Collection<Service>) {
         LOG.info { "Registering service ${s.name()}" }
+        // This also rules out cycles
+        require(services.containsAll(dependencies)) { "Dependencies must be registered first" }
+        this.dependencies[s] = dependencies.toList()
         services.add(s)
     }
 
@@ -118,7 +140,7 @@ internal class LifecycleManagerImpl @Inject constructor(
         this.wipeHook = wipeHook
         return try {
             LOG.info("Opening database")
-            var start = now()
+            val start = now()
             val reopened = db.open(this)
             if (reopened) logDuration(LOG, start) { "Reopening database" }
             else logDuration(LOG, start) { "Creating database" }
@@ -128,16 +150,20 @@ internal class LifecycleManagerImpl @Inject constructor(
                     hook.onDatabaseOpened(txn)
                 }
             }
+            if (db.isMaintenanceDue()) {
+                // Services don't depend on maintenance, so by default, run it once they're up
+                if (databaseConfig.isMaintenanceDeferred()) maintenanceState.value = PENDING
+                else runMaintenance()
+            }
             LOG.info("Starting services")
             state.value = STARTING_SERVICES
             dbLatch.countDown()
-            for (s in services) {
-                start = now()
-                s.startService()
-                logDuration(LOG, start) { "Starting service  ${s.name()}" }
-            }
+            startAllServices()
             state.compareAndSet(STARTING_SERVICES, RUNNING)
             startupLatch.countDown()
+            if (maintenanceState.value == PENDING) {
+                thread(name = "DatabaseMaintenance") { runMaintenance() }
+            }
             SUCCESS
         } catch (e: ServiceException) {
             logException(LOG, e) { "Error while starting services" }
@@ -145,14 +171,63 @@ internal class LifecycleManagerImpl @Inject constructor(
         }
     }
 
+    /**
+     * Starts all services on background threads, each one as soon as its dependencies
+     * have been started, and logs how long each service took to start.
+     */
+    @Throws(ServiceException::class)
+    private fun startAllServices() {
+        val start = now()
+        val durations = ConcurrentHashMap<String, Long>()
+        runBlocking(Dispatchers.IO) {
+            val started = HashMap<Service, Deferred<Unit>>()
+            for (s in services) {
+                val dependencies = dependenciesOf(s).map { started.getValue(it) }
+                started[s] = async {
+                    dependencies.awaitAll()
+                    val serviceStart = now()
+                    s.startService()
+                    durations[s.name()] = now() - serviceStart
+                    logDuration(LOG, serviceStart) { "Starting service ${s.name()}" }
+                }
+            }
+            // The first failure cancels the services that haven't started yet and gets rethrown
+            started.values.awaitAll()
+        }
+        LOG.info {
+            "Started ${services.size} services in ${now() - start} ms: " +
+                durations.entries.sortedByDescending { it.value }
+                    .joinToString { "${it.key} ${it.value} ms" }
+        }
+    }
+
+    private fun dependenciesOf(s: Service) = dependencies[s] ?: emptyList()
+
+    private fun runMaintenance() {
+        LOG.info("Running database maintenance")
+        maintenanceState.value = MaintenanceState.RUNNING
+        val start = now()
+        try {
+            db.runMaintenance()
+            maintenanceState.value = FINISHED
+            logDuration(LOG, start) { "Database maintenance" }
+        } catch (e: DbClosedException) {
+            // the lifecycle is stopping, maintenance will be due again when reopening
+            maintenanceState.value = FAILED
+        } catch (e: DbException) {
+            logException(LOG, e) { "Error while running database maintenance" }
+            maintenanceState.value = FAILED
+        }
+    }
+
     // will be called during db.open() in startServices()
     override fun onDatabaseMigration() {
         state.value = MIGRATING_DATABASE
     }
 
     // will be called during db.open() in startServices()
-    override fun onDatabaseCompaction() {
-        state.value = COMPACTING_DATABASE
+    override fun onDatabaseMigrationProgress(done: Int, total: Int) {
+        LOG.info { "Migrated $done of $total rows" }
     }
 
     override fun stopServices(exitAfterStopping: Boolean) {
@@ -202,10 +277,20 @@ internal class LifecycleManagerImpl @Inject constructor(
 
     // will be called during stopServices()
     private fun stopAllServices() {
-        for (s in services) {
-            run("stopping service ${s.name()}") {
-                s.stopService()
+        runBlocking(Dispatchers.IO) {
+            // Services only get stopped once all services depending on them have been stopped
+            val stopped = HashMap<Service, Deferred<Unit>>()
+            for (s in services.asReversed()) {
+                val dependents = services.filter { s in dependenciesOf(it) }
+                    .map { stopped.getValue(it) }
+                stopped[s] = async {
+                    dependents.awaitAll()
+                    run("stopping service ${s.name()}") {
+                        s.stopService()
+                    }
+                }
             }
+            stopped.values.awaitAll()
         }
     }
 
@@ -249,6 +334,8 @@ internal class LifecycleManagerImpl @Inject constructor(
 
     override val lifecycleStateFlow = state
 
+    override val maintenanceStateFlow = maintenanceState
+
     /**
      * Run the task specified, logging the [name] of the task and the time measured it took to
      * execute the task.
@@ -23,12 +23,16 @@ import io.ktor.server.auth.Principal
 import io.ktor.server.plugins.NotFoundException
 import org.briarproject.mailbox.core.contacts.Contact
 import org.briarproject.mailbox.core.db.Database
+import org.briarproject.mailbox.core.db.DbException
+import org.briarproject.mailbox.core.db.Transaction
+import org.briarproject.mailbox.core.lifecycle.LifecycleManager.OpenDatabaseHook
 import org.briarproject.mailbox.core.server.MailboxPrincipal.ContactPrincipal
 import org.briarproject.mailbox.core.server.MailboxPrincipal.OwnerPrincipal
 import org.briarproject.mailbox.core.server.MailboxPrincipal.SetupPrincipal
 import org.briarproject.mailbox.core.settings.MetadataManager
 import org.briarproject.mailbox.core.setup.SetupManager
 import org.briarproject.mailbox.core.system.RandomIdManager
+import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -38,7 +42,61 @@ class AuthManager @Inject constructor(
     private val setupManager: SetupManager,
     private val metadataManager: MetadataManager,
     private val randomIdManager: RandomIdManager,
-) {
+) : OpenDatabaseHook {
+
+    /**
+     * Maps the auth token of each contact to its [ContactPrincipal],
+     * so that authenticating requests doesn't need to access the database.
+     * Filled when the database is opened and kept in sync
+     * via [onContactAdded] and [onContactRemoved].
+     */
+    private val contactPrincipals = ConcurrentHashMap<String, ContactPrincipal>()
+
+    /**
+     * Maps the inbox folder ID of each contact to the contact.
+     * The owner may post to these folders.
+     */
+    private val contactInboxes = ConcurrentHashMap<String, Contact>()
+
+    /**
+     * Maps the outbox folder ID of each contact to the contact.
+     * The owner may download from and delete in these folders.
+     */
+    private val contactOutboxes = ConcurrentHashMap<String, Contact>()
+
+    @Throws(DbException::class)
+    override fun onDatabaseOpened(txn: Transaction) {
+        contactPrincipals.clear()
+        contactInboxes.clear()
+        contactOutboxes.clear()
+        db.getContacts(txn).forEach { c -> onContactAdded(c) }
+    }
+
+    /**
+     * Call this after the given [contact] has been added to the database,
+     * ideally by attaching it to the adding [Transaction].
+     */
+    fun onContactAdded(contact: Contact) {
+        contactInboxes[contact.inboxId] = contact
+        contactOutboxes[contact.outboxId] = contact
+        contactPrincipals[contact.token] = ContactPrincipal(contact)
+    }
+
+    /**
+     * Call this after the given [contact] has been removed from the database,
+     * ideally by attaching it to the removing [Transaction].
+     */
+    fun onContactRemoved(contact: Contact) {
+        contactPrincipals.remove(contact.token)
+        contactInboxes.remove(contact.inboxId)
+        contactOutboxes.remove(contact.outboxId)
+    }
+
+    /**
+     * Returns the IDs of all folders the owner can download from,
+     * i.e. the outboxes of all contacts, as a snapshot that doesn't change with the contacts.
+     */
+    fun getOwnerDownloadFolderIds(): Set<String> = contactOutboxes.keys.toSet()
 
     /**
      * Returns the principal the given token belongs to
@@ -46,14 +104,10 @@ class AuthManager @Inject constructor(
      */
     fun getPrincipal(token: String): MailboxPrincipal? {
         randomIdManager.assertIsRandomId(token)
-        val principal = db.read { txn ->
-            val contact = db.getContactWithToken(txn, token)
-            when {
-                contact != null -> ContactPrincipal(contact)
-                setupManager.getOwnerToken(txn) == token -> OwnerPrincipal
-                setupManager.getSetupToken(txn) == token -> SetupPrincipal
-                else -> null
-            }
+        val principal = contactPrincipals[token] ?: when (token) {
+            setupManager.getOwnerToken() -> OwnerPrincipal
+            setupManager.getSetupToken() -> SetupPrincipal
+            else -> null
         }
         // We register the owner connection here before further call validation.
         // It can still happen that the owner sends invalid requests, but that's fine here.
@@ -71,9 +125,7 @@ class AuthManager @Inject constructor(
         if (principal == null) throw AuthException()
 
         if (principal is OwnerPrincipal) {
-            val contacts = db.read { txn -> db.getContacts(txn) }
-            val noOutboxFound = contacts.none { c -> folderId == c.outboxId }
-            if (noOutboxFound) throw NotFoundException()
+            if (!contactOutboxes.containsKey(folderId)) throw NotFoundException()
         } else if (principal is ContactPrincipal) {
             if (folderId != principal.contact.inboxId) throw NotFoundException()
         }
@@ -89,9 +141,7 @@ class AuthManager @Inject constructor(
         if (principal == null) throw AuthException()
 
         if (principal is OwnerPrincipal) {
-            val contacts = db.read { txn -> db.getContacts(txn) }
-            val noInboxFound = contacts.none { c -> folderId == c.inboxId }
-            if (noInboxFound) throw NotFoundException()
+            if (!contactInboxes.containsKey(folderId)) throw NotFoundException()
         } else if (principal is ContactPrincipal) {
             if (folderId != principal.contact.outboxId) throw NotFoundException()
         }
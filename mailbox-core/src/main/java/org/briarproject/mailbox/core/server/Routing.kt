@@ -33,6 +33,7 @@ import io.ktor.server.response.respond
 import io.ktor.server.response.respondText
 import io.ktor.server.routing.delete
 import io.ktor.server.routing.get
+import io.ktor.server.routing.patch
 import io.ktor.server.routing.post
 import io.ktor.server.routing.put
 import io.ktor.server.routing.route
@@ -125,6 +126,53 @@ internal fun Application.configureFilesApi(fileRouteManager: FileRouteManager) =
                     fileRouteManager.listFiles(call, call.parameters.getOrFail("folderId"))
                 }
             }
+            route("/batch") {
+                post {
+                    call.handle {
+                        fileRouteManager.postFiles(call, call.parameters.getOrFail("folderId"))
+                    }
+                }
+                get {
+                    call.handle {
+                        fileRouteManager.getFiles(call, call.parameters.getOrFail("folderId"))
+                    }
+                }
+                delete {
+                    call.handle {
+                        fileRouteManager.deleteFiles(call, call.parameters.getOrFail("folderId"))
+                    }
+                }
+            }
+            route("/uploads") {
+                post {
+                    call.handle {
+                        fileRouteManager.createUpload(call, call.parameters.getOrFail("folderId"))
+                    }
+                }
+                route("/{uploadId}") {
+                    get {
+                        val folderId = call.parameters.getOrFail("folderId")
+                        val uploadId = call.parameters.getOrFail("uploadId")
+                        call.handle {
+                            fileRouteManager.getUpload(call, folderId, uploadId)
+                        }
+                    }
+                    patch {
+                        val folderId = call.parameters.getOrFail("folderId")
+                        val uploadId = call.parameters.getOrFail("uploadId")
+                        call.handle {
+                            fileRouteManager.appendToUpload(call, folderId, uploadId)
+                        }
+                    }
+                    post {
+                        val folderId = call.parameters.getOrFail("folderId")
+                        val uploadId = call.parameters.getOrFail("uploadId")
+                        call.handle {
+                            fileRouteManager.completeUpload(call, folderId, uploadId)
+                        }
+                    }
+                }
+            }
             route("/{fileId}") {
                 get {
                     val folderId = call.parameters.getOrFail("folderId")
@@ -24,6 +24,7 @@ import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.components.SingletonComponent
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager
+import org.briarproject.mailbox.core.settings.MetadataManager
 import javax.inject.Singleton
 
 @Module
@@ -35,8 +36,12 @@ internal class WebServerModule {
     fun provideWebServerManager(
         lifecycleManager: LifecycleManager,
         webServerManager: WebServerManagerImpl,
+        authManager: AuthManager,
+        metadataManager: MetadataManager,
     ): WebServerManager {
-        lifecycleManager.registerService(webServerManager)
+        lifecycleManager.registerOpenDatabaseHook(authManager)
+        // Owner connections get stored by the metadata manager until it gets stopped
+        lifecycleManager.registerService(webServerManager, listOf(metadataManager))
         return webServerManager
     }
 
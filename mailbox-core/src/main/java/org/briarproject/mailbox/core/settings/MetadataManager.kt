@@ -25,17 +25,23 @@ import io.ktor.server.auth.principal
 import io.ktor.server.response.respond
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
+import org.briarproject.mailbox.core.db.DatabaseConfig
+import org.briarproject.mailbox.core.db.DbClosedException
 import org.briarproject.mailbox.core.db.DbException
 import org.briarproject.mailbox.core.db.Transaction
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.OpenDatabaseHook
+import org.briarproject.mailbox.core.lifecycle.Service
 import org.briarproject.mailbox.core.server.AuthException
 import org.briarproject.mailbox.core.server.AuthManager
 import org.briarproject.mailbox.core.settings.MetadataManager.Companion.SUPPORTED_VERSIONS
 import org.briarproject.mailbox.core.system.Clock
+import org.briarproject.mailbox.core.util.LogUtils.logException
+import org.slf4j.LoggerFactory.getLogger
+import java.util.concurrent.atomic.AtomicLong
 import javax.inject.Inject
 
-interface MetadataManager : OpenDatabaseHook {
+interface MetadataManager : OpenDatabaseHook, Service {
 
     companion object {
         internal val SUPPORTED_VERSIONS = listOf(MailboxVersion(1, 0))
@@ -43,9 +49,11 @@ interface MetadataManager : OpenDatabaseHook {
 
     /**
      * Call this after the owner authenticated.
-     * It stores the current timestamp in settings.
+     * It updates [ownerConnectionTime] and stores the current timestamp in settings,
+     * unless it was already stored less than
+     * [DatabaseConfig.getOwnerConnectionPersistIntervalMs] ago.
+     * The timestamp gets stored asynchronously, so this doesn't wait for the database.
      */
-    @Throws(DbException::class)
     fun onOwnerConnected()
 
     /**
@@ -63,24 +71,77 @@ private const val SETTINGS_LAST_CONNECTION_TIME = "lastConnectionTime"
 class MetadataManagerImpl @Inject constructor(
     private val settingsManager: SettingsManager,
     private val clock: Clock,
+    databaseConfig: DatabaseConfig,
 ) : MetadataManager {
 
+    companion object {
+        private val LOG = getLogger(MetadataManagerImpl::class.java)
+    }
+
     private val _ownerConnectionTime = MutableStateFlow(0L)
     override val ownerConnectionTime: StateFlow<Long> = _ownerConnectionTime
 
+    /**
+     * The owner connection time that was last stored in the database.
+     */
+    private val persistedConnectionTime = AtomicLong(0L)
+
+    private val persistInterval = databaseConfig.getOwnerConnectionPersistIntervalMs()
+
     override fun onDatabaseOpened(txn: Transaction) {
         val s = settingsManager.getSettings(txn, SETTINGS_NAMESPACE_OWNER_METADATA)
-        _ownerConnectionTime.value = s.getLong(SETTINGS_LAST_CONNECTION_TIME, 0L)
+        val timestamp = s.getLong(SETTINGS_LAST_CONNECTION_TIME, 0L)
+        persistedConnectionTime.set(timestamp)
+        _ownerConnectionTime.value = timestamp
     }
 
-    @Throws(DbException::class)
     override fun onOwnerConnected() {
         val timestamp = clock.currentTimeMillis()
-        val s = Settings().apply {
-            putLong(SETTINGS_LAST_CONNECTION_TIME, timestamp)
-        }
-        settingsManager.mergeSettings(s, SETTINGS_NAMESPACE_OWNER_METADATA)
         _ownerConnectionTime.value = timestamp
+        val persisted = persistedConnectionTime.get()
+        // only one of several concurrent owner connections needs to store its timestamp
+        if (timestamp - persisted >= persistInterval &&
+            persistedConnectionTime.compareAndSet(persisted, timestamp)
+        ) {
+            settingsManager.mergeSettingsAsync(
+                getSettings(timestamp),
+                SETTINGS_NAMESPACE_OWNER_METADATA
+            ).invokeOnCompletion { e ->
+                if (e != null) {
+                    logException(LOG, e) { "Error while storing owner connection time" }
+                    // let the next owner connection try again, unless another one got stored
+                    persistedConnectionTime.compareAndSet(timestamp, persisted)
+                }
+            }
+        }
+    }
+
+    override fun startService() {
+        // nothing to start, owner connections are registered by the AuthManager
+    }
+
+    /**
+     * Stores the latest owner connection time if that didn't happen yet.
+     */
+    override fun stopService() {
+        val timestamp = _ownerConnectionTime.value
+        if (timestamp > persistedConnectionTime.getAndSet(timestamp)) {
+            try {
+                persist(timestamp)
+            } catch (e: DbClosedException) {
+                // the database has been wiped already
+                LOG.info("Not storing owner connection time, database closed")
+            }
+        }
+    }
+
+    @Throws(DbException::class)
+    private fun persist(timestamp: Long) {
+        settingsManager.mergeSettings(getSettings(timestamp), SETTINGS_NAMESPACE_OWNER_METADATA)
+    }
+
+    private fun getSettings(timestamp: Long) = Settings().apply {
+        putLong(SETTINGS_LAST_CONNECTION_TIME, timestamp)
     }
 
 }
@@ -19,9 +19,11 @@
 
 package org.briarproject.mailbox.core.settings
 
-import java.util.Hashtable
-
-class Settings : Hashtable<String, String>() {
+/**
+ * A mutable set of settings. Access is not synchronised,
+ * so an instance must not be modified while being shared between threads.
+ */
+class Settings : HashMap<String, String>() {
 
     /**
      * Note that null values will get stored as empty string.
@@ -75,4 +77,9 @@ class Settings : Hashtable<String, String>() {
     fun putLong(key: String, value: Long) {
         put(key, value.toString())
     }
+
+    /**
+     * Returns a copy of these settings that can be modified independently.
+     */
+    fun copy(): Settings = Settings().also { it.putAll(this) }
 }
@@ -19,8 +19,10 @@
 
 package org.briarproject.mailbox.core.settings
 
+import kotlinx.coroutines.Deferred
 import org.briarproject.mailbox.core.db.DbException
 import org.briarproject.mailbox.core.db.Transaction
+import org.briarproject.mailbox.core.db.TransactionManager
 
 interface SettingsManager {
     /**
@@ -48,4 +50,11 @@ interface SettingsManager {
      */
     @Throws(DbException::class)
     fun mergeSettings(txn: Transaction, s: Settings, namespace: String)
+
+    /**
+     * Merges the given settings with any existing settings in the given
+     * namespace without waiting for the change to be committed.
+     * See [TransactionManager.writeAsync].
+     */
+    fun mergeSettingsAsync(s: Settings, namespace: String): Deferred<Unit>
 }
@@ -19,6 +19,7 @@
 
 package org.briarproject.mailbox.core.settings
 
+import kotlinx.coroutines.Deferred
 import org.briarproject.mailbox.core.db.Database
 import org.briarproject.mailbox.core.db.DbException
 import org.briarproject.mailbox.core.db.Transaction
@@ -47,4 +48,8 @@ internal class SettingsManagerImpl(private val db: Database) : SettingsManager {
     override fun mergeSettings(txn: Transaction, s: Settings, namespace: String) {
         db.mergeSettings(txn, s, namespace)
     }
+
+    override fun mergeSettingsAsync(s: Settings, namespace: String): Deferred<Unit> {
+        return db.writeAsync { txn -> db.mergeSettings(txn, s, namespace) }
+    }
 }
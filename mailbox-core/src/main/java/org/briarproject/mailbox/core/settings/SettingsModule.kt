@@ -41,6 +41,7 @@ class SettingsModule {
     ): MetadataManager {
         return metadataManagerImpl.also {
             lifecycleManager.registerOpenDatabaseHook(it)
+            lifecycleManager.registerService(it)
         }
     }
 }
@@ -25,8 +25,10 @@ import io.ktor.server.auth.principal
 import io.ktor.server.response.respond
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.withContext
 import org.briarproject.mailbox.core.db.DbException
 import org.briarproject.mailbox.core.db.Transaction
+import org.briarproject.mailbox.core.db.TransactionManager
 import org.briarproject.mailbox.core.files.FileManager
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.LifecycleState.RUNNING
@@ -76,9 +78,22 @@ interface SetupManager : OpenDatabaseHook {
 
     @Throws(DbException::class)
     fun getOwnerToken(txn: Transaction): String?
+
+    /**
+     * Returns the current setup token without accessing the database.
+     * Attention: Only valid after the database has been opened.
+     */
+    fun getSetupToken(): String?
+
+    /**
+     * Returns the current owner token without accessing the database.
+     * Attention: Only valid after the database has been opened.
+     */
+    fun getOwnerToken(): String?
 }
 
 class SetupManagerImpl @Inject constructor(
+    private val db: TransactionManager,
     private val randomIdManager: RandomIdManager,
     private val settingsManager: SettingsManager,
     private val fileManager: FileManager,
@@ -89,6 +104,13 @@ class SetupManagerImpl @Inject constructor(
     private val _setupComplete = MutableStateFlow(UNKNOWN)
     override val setupComplete: StateFlow<SetupComplete> = _setupComplete
 
+    /**
+     * In-memory copy of the tokens stored in the database,
+     * replaced as a whole so that readers always see a consistent pair.
+     */
+    @Volatile
+    private var tokens = Tokens(null, null)
+
     @Throws(DbException::class)
     override fun onDatabaseOpened(txn: Transaction) {
         val settings = settingsManager.getSettings(txn, SETTINGS_NAMESPACE_OWNER)
@@ -96,10 +118,13 @@ class SetupManagerImpl @Inject constructor(
         val ownerToken = settings[SETTINGS_OWNER_TOKEN]
         // ensure that setup token is initialized if both tokens are empty
         if (setupToken == null && ownerToken == null) {
-            settings[SETTINGS_SETUP_TOKEN] = randomIdManager.getNewRandomId()
+            val newSetupToken = randomIdManager.getNewRandomId()
+            settings[SETTINGS_SETUP_TOKEN] = newSetupToken
             settingsManager.mergeSettings(txn, settings, SETTINGS_NAMESPACE_OWNER)
+            tokens = Tokens(newSetupToken, null)
             _setupComplete.value = FALSE
         } else {
+            tokens = Tokens(setupToken, ownerToken)
             _setupComplete.value = if (ownerToken != null) TRUE else FALSE
         }
     }
@@ -116,8 +141,14 @@ class SetupManagerImpl @Inject constructor(
         settings[SETTINGS_SETUP_TOKEN] = setupToken
         if (ownerToken != null) randomIdManager.assertIsRandomId(ownerToken)
         settings[SETTINGS_OWNER_TOKEN] = ownerToken
-        settingsManager.mergeSettings(settings, SETTINGS_NAMESPACE_OWNER)
-        _setupComplete.value = TRUE
+        db.write { txn ->
+            settingsManager.mergeSettings(txn, settings, SETTINGS_NAMESPACE_OWNER)
+            // Concurrent calls update the cache in the order their changes got committed
+            txn.attach {
+                tokens = Tokens(setupToken, ownerToken)
+                _setupComplete.value = TRUE
+            }
+        }
     }
 
     @Throws(DbException::class)
@@ -132,9 +163,16 @@ class SetupManagerImpl @Inject constructor(
         return settings[SETTINGS_OWNER_TOKEN]
     }
 
+    override fun getSetupToken(): String? = tokens.setupToken
+
+    override fun getOwnerToken(): String? = tokens.ownerToken
+
+    private data class Tokens(val setupToken: String?, val ownerToken: String?)
+
 }
 
 class SetupRouteManager @Inject constructor(
+    private val db: TransactionManager,
     private val authManager: AuthManager,
     private val setupManager: SetupManager,
     private val randomIdManager: RandomIdManager,
@@ -150,7 +188,9 @@ class SetupRouteManager @Inject constructor(
 
         // set new owner token and clear single-use setup token
         val ownerToken = randomIdManager.getNewRandomId()
-        setupManager.setToken(null, ownerToken)
+        withContext(db.dispatcher) {
+            setupManager.setToken(null, ownerToken)
+        }
         val response = SetupResponse(ownerToken, SUPPORTED_VERSIONS)
 
         call.respond(HttpStatusCode.Created, response)
@@ -0,0 +1,34 @@
+package org.briarproject.mailbox.core
+
+import org.slf4j.LoggerFactory.getLogger
+
+/**
+ * Simple helpers for the benchmarks in this module.
+ * Benchmarks only run when passing `-Pbenchmark` to Gradle,
+ * e.g. `./gradlew :mailbox-core:test -Pbenchmark --tests '*Benchmark'`
+ */
+object BenchmarkUtils {
+
+    /**
+     * The system property set by the build when benchmarks should be run.
+     */
+    const val BENCHMARK_PROPERTY = "benchmark"
+
+    private val LOG = getLogger(BenchmarkUtils::class.java)
+
+    /**
+     * Runs [block] [warmup] times without measuring,
+     * then [iterations] times while measuring.
+     *
+     * @return the average time per iteration in nanoseconds.
+     */
+    fun measure(name: String, iterations: Int, warmup: Int = iterations, block: () -> Unit): Long {
+        repeat(warmup) { block() }
+        val start = System.nanoTime()
+        repeat(iterations) { block() }
+        val nanosPerOp = (System.nanoTime() - start) / iterations
+        LOG.info("$name: $nanosPerOp ns/op ($iterations iterations)")
+        return nanosPerOp
+    }
+
+}
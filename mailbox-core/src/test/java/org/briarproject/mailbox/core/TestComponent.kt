@@ -5,7 +5,9 @@ import org.briarproject.mailbox.core.db.Database
 import org.briarproject.mailbox.core.db.DatabaseConfig
 import org.briarproject.mailbox.core.files.FileManager
 import org.briarproject.mailbox.core.files.FileProvider
+import org.briarproject.mailbox.core.files.UploadSessionManager
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager
+import org.briarproject.mailbox.core.server.AuthManager
 import org.briarproject.mailbox.core.server.WebServerManager
 import org.briarproject.mailbox.core.settings.MetadataManager
 import org.briarproject.mailbox.core.settings.SettingsManager
@@ -25,10 +27,12 @@ interface TestComponent {
     fun getSettingsManager(): SettingsManager
     fun getSetupManager(): SetupManager
     fun getFileManager(): FileManager
+    fun getUploadSessionManager(): UploadSessionManager
     fun getDatabaseConfig(): DatabaseConfig
     fun getDatabase(): Database
     fun getFileProvider(): FileProvider
     fun getMetadataManager(): MetadataManager
     fun getWebServerManager(): WebServerManager
+    fun getAuthManager(): AuthManager
     fun getWipeManager(): WipeManager
 }
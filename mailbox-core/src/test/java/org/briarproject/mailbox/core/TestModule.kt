@@ -4,8 +4,11 @@ import dagger.Module
 import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.components.SingletonComponent
+import org.briarproject.mailbox.core.db.DatabaseCompactorModule
 import org.briarproject.mailbox.core.db.DatabaseConfig
 import org.briarproject.mailbox.core.db.TestDatabaseModule
+import org.briarproject.mailbox.core.event.DefaultEventExecutorModule
+import org.briarproject.mailbox.core.event.EventModule
 import org.briarproject.mailbox.core.files.FileModule
 import org.briarproject.mailbox.core.files.FileProvider
 import org.briarproject.mailbox.core.lifecycle.IoExecutor
@@ -22,8 +25,11 @@ import javax.inject.Singleton
 
 @Module(
     includes = [
+        EventModule::class,
+        DefaultEventExecutorModule::class,
         LifecycleModule::class,
         TestDatabaseModule::class,
+        DatabaseCompactorModule::class,
         TestTaskSchedulerModule::class,
         FileModule::class,
         SetupModule::class,
@@ -55,10 +61,10 @@ internal class TestModule(private val tempDir: File) {
     fun provideFileProvider() = object : FileProvider {
         override val root: File get() = tempDir
         override val folderRoot = File(tempDir, "folders")
-        private val tempFilesDir = File(tempDir, "tmp").apply { mkdirs() }
+        override val tempFilesRoot = File(tempDir, "tmp").apply { mkdirs() }
 
-        override fun getTemporaryFile(fileId: String) = File(tempFilesDir, fileId).apply {
-            // we delete root at the end of each test, so tempFilesDir gets deleted as well
+        override fun getTemporaryFile(fileId: String) = File(tempFilesRoot, fileId).apply {
+            // we delete root at the end of each test, so tempFilesRoot gets deleted as well
             parentFile.mkdirs()
         }
 
@@ -0,0 +1,71 @@
+package org.briarproject.mailbox.core.db
+
+import io.mockk.mockk
+import org.briarproject.mailbox.core.BenchmarkUtils.BENCHMARK_PROPERTY
+import org.briarproject.mailbox.core.BenchmarkUtils.measure
+import org.briarproject.mailbox.core.TestUtils.getNewRandomContact
+import org.briarproject.mailbox.core.event.EventBus
+import org.briarproject.mailbox.core.settings.Settings
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty
+import org.junit.jupiter.api.io.TempDir
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.EnumSource
+import org.slf4j.LoggerFactory.getLogger
+import java.io.File
+import kotlin.test.assertEquals
+
+@EnabledIfSystemProperty(named = BENCHMARK_PROPERTY, matches = "true")
+class DatabaseBackendBenchmark {
+
+    companion object {
+        private val LOG = getLogger(DatabaseBackendBenchmark::class.java)
+    }
+
+    @TempDir
+    lateinit var testDir: File
+
+    private val contacts = (1..100).map { getNewRandomContact(it) }
+
+    private fun createDatabase(backend: DatabaseBackend): Database {
+        val config = TestDatabaseConfig(testDir)
+        val eventBus: EventBus = mockk(relaxed = true)
+        return when (backend) {
+            DatabaseBackend.H2 -> H2Database(config, { System.currentTimeMillis() }, eventBus)
+            DatabaseBackend.LOG -> LogDatabase(config, eventBus)
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(DatabaseBackend::class)
+    fun `measure startup time and operations`(backend: DatabaseBackend) {
+        val initial = createDatabase(backend)
+        initial.open(null)
+        initial.write { txn -> contacts.forEach { initial.addContact(txn, it) } }
+        initial.close()
+
+        val startupNanos = measure("$backend startup", iterations = 20, warmup = 5) {
+            val reopened = createDatabase(backend)
+            reopened.open(null)
+            reopened.close()
+        }
+
+        val db = createDatabase(backend)
+        db.open(null)
+        var i = 0
+        val lookupNanos = measure("$backend token lookup", iterations = 50_000) {
+            val contact = contacts[i++ % contacts.size]
+            db.read { txn -> assertEquals(contact, db.getContactWithToken(txn, contact.token)) }
+        }
+        val mergeNanos = measure("$backend settings merge", iterations = 2_000) {
+            val s = Settings()
+            s.putInt("counter", i++)
+            db.write { txn -> db.mergeSettings(txn, s, "benchmark") }
+        }
+        db.close()
+        LOG.info(
+            "$backend: startup $startupNanos ns, token lookup $lookupNanos ns/op, " +
+                "settings merge $mergeNanos ns/op"
+        )
+    }
+
+}
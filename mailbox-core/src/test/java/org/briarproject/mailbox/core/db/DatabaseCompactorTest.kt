@@ -0,0 +1,87 @@
+package org.briarproject.mailbox.core.db
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.verify
+import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.MAX_COMPACTION_INTERVAL_MS
+import org.briarproject.mailbox.core.system.TestTaskSchedulerModule
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.util.concurrent.Executor
+import java.util.concurrent.TimeUnit.MINUTES
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+class DatabaseCompactorTest {
+
+    private val db: Database = mockk()
+    private val compactor = DatabaseCompactorImpl(
+        db = db,
+        // runs the task once, immediately
+        taskScheduler = TestTaskSchedulerModule().provideTaskScheduler(),
+        ioExecutor = Executor { it.run() },
+    )
+
+    @Test
+    fun `database gets compacted when due and idle`() {
+        every { db.isCompactionDue() } returns true
+        every { db.getIdleTime() } returns MINUTES.toMillis(1)
+        every { db.compact() } returns CompactionResult(2, 1, 1)
+
+        compactor.startService()
+        verify(exactly = 1) { db.compact() }
+    }
+
+    @Test
+    fun `database does not get compacted when not due`() {
+        every { db.isCompactionDue() } returns false
+
+        compactor.startService()
+        verify(exactly = 0) { db.compact() }
+    }
+
+    @Test
+    fun `database does not get compacted while busy`() {
+        every { db.isCompactionDue() } returns true
+        every { db.getIdleTime() } returns 0
+
+        compactor.startService()
+        verify(exactly = 0) { db.compact() }
+    }
+
+    @Test
+    fun `real database gets compacted when due and idle`(@TempDir testDir: File) {
+        var time = System.currentTimeMillis()
+        val db = TestH2Database(TestDatabaseConfig(testDir), { time }, mockk(relaxed = true))
+        db.open(null)
+        time += MAX_COMPACTION_INTERVAL_MS + 1
+        val compactor = DatabaseCompactorImpl(
+            db = db,
+            taskScheduler = TestTaskSchedulerModule().provideTaskScheduler(),
+            ioExecutor = Executor { it.run() },
+            minIdleTime = 100,
+        )
+
+        // checking whether compaction is due must not count as activity
+        Thread.sleep(200)
+        val idleTime = db.getIdleTime()
+        assertTrue(db.isCompactionDue())
+        assertTrue(db.getIdleTime() >= idleTime)
+
+        compactor.startService()
+        assertEquals(1, db.getStats().compaction.count)
+        assertFalse(db.isCompactionDue())
+        db.close()
+    }
+
+    @Test
+    fun `closed database does not cause an error`() {
+        every { db.isCompactionDue() } throws DbClosedException()
+
+        compactor.startService()
+        verify(exactly = 0) { db.compact() }
+    }
+
+}
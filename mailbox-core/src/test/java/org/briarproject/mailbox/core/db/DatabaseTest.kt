@@ -0,0 +1,422 @@
+package org.briarproject.mailbox.core.db
+
+import io.mockk.mockk
+import io.mockk.verify
+import io.mockk.verifyOrder
+import kotlinx.coroutines.async
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.briarproject.mailbox.core.TestUtils.deleteTestDirectory
+import org.briarproject.mailbox.core.TestUtils.getNewRandomContact
+import org.briarproject.mailbox.core.contacts.Contact
+import org.briarproject.mailbox.core.event.Event
+import org.briarproject.mailbox.core.event.EventBus
+import org.briarproject.mailbox.core.settings.Settings
+import org.briarproject.mailbox.core.system.Clock
+import org.briarproject.mailbox.core.system.RandomIdManager
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.MINUTES
+import java.util.concurrent.TimeUnit.SECONDS
+import kotlin.concurrent.thread
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+abstract class DatabaseTest {
+
+    @TempDir
+    lateinit var testDir: File
+
+    private val randomIdManager = RandomIdManager()
+
+    protected val eventBus: EventBus = mockk(relaxed = true)
+
+    /**
+     * The mode the tests run in, unless they test a specific mode.
+     */
+    protected open val concurrencyMode = ConcurrencyMode.EXCLUSIVE
+
+    protected abstract fun createDatabase(
+        config: DatabaseConfig,
+        clock: Clock,
+    ): Database
+
+    @Throws(java.lang.Exception::class)
+    fun open(
+        resume: Boolean,
+        config: DatabaseConfig = TestDatabaseConfig(testDir, concurrencyMode = concurrencyMode),
+    ): Database {
+        val db: Database = createDatabase(config) { System.currentTimeMillis() }
+        if (!resume) deleteTestDirectory(testDir)
+        db.open(null)
+        return db
+    }
+
+    @Test
+    @Throws(Exception::class)
+    open fun testPersistence() {
+        // Store some records
+        val contact1 = Contact(
+            contactId = 1,
+            token = randomIdManager.getNewRandomId(),
+            inboxId = randomIdManager.getNewRandomId(),
+            outboxId = randomIdManager.getNewRandomId()
+        )
+        val contact2 = Contact(
+            contactId = 2,
+            token = randomIdManager.getNewRandomId(),
+            inboxId = randomIdManager.getNewRandomId(),
+            outboxId = randomIdManager.getNewRandomId()
+        )
+        var db: Database = open(false)
+        db.write { txn ->
+
+            db.addContact(txn, contact1)
+            db.addContact(txn, contact2)
+        }
+        db.close()
+
+        // Check that the records are still there
+        db = open(true)
+        db.write { txn ->
+            val contact1Reloaded1 = db.getContact(txn, 1)
+            val contact2Reloaded1 = db.getContact(txn, 2)
+            assertEquals(contact1, contact1Reloaded1)
+            assertEquals(contact2, contact2Reloaded1)
+            assertEquals(contact1, db.getContactWithToken(txn, contact1.token))
+            assertEquals(contact2, db.getContactWithToken(txn, contact2.token))
+            assertNull(db.getContactWithToken(txn, randomIdManager.getNewRandomId()))
+
+            // Delete one of the records
+            db.removeContact(txn, 1)
+        }
+        db.close()
+
+        // Check that the record is gone
+        db = open(true)
+        db.read { txn ->
+            val contact1Reloaded2 = db.getContact(txn, 1)
+            val contact2Reloaded2 = db.getContact(txn, 2)
+            assertNull(contact1Reloaded2)
+            assertEquals(contact2, contact2Reloaded2)
+        }
+        db.close()
+    }
+
+    @Test
+    fun `test that there can not be two contacts with same ID`() {
+        val db: Database = open(false)
+        db.write { txn ->
+            db.addContact(txn, getNewRandomContact(id = 1))
+            assertThrows<DbException> {
+                db.addContact(txn, getNewRandomContact(id = 1))
+            }
+        }
+    }
+
+    @Test
+    fun `test that there can not be two contacts with same token, inbox or outbox`() {
+        val db: Database = open(false)
+        val contact = getNewRandomContact(id = 1)
+        db.write { txn ->
+            db.addContact(txn, contact)
+        }
+        assertThrows<DbException> {
+            db.write { txn ->
+                db.addContact(txn, getNewRandomContact(2).copy(token = contact.token))
+            }
+        }
+        assertThrows<DbException> {
+            db.write { txn ->
+                db.addContact(txn, getNewRandomContact(2).copy(inboxId = contact.inboxId))
+            }
+        }
+        assertThrows<DbException> {
+            db.write { txn ->
+                db.addContact(txn, getNewRandomContact(2).copy(outboxId = contact.outboxId))
+            }
+        }
+        db.close()
+    }
+
+    @Test
+    fun `test that readers do not wait for a writer in MVCC mode`() {
+        val config = TestDatabaseConfig(testDir, concurrencyMode = ConcurrencyMode.MVCC)
+        val db: Database = open(false, config)
+        val contact = getNewRandomContact(id = 1)
+        val written = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val writer = thread {
+            db.write { txn ->
+                db.addContact(txn, contact)
+                written.countDown()
+                release.await()
+            }
+        }
+        assertTrue(written.await(10, SECONDS))
+        // the reader doesn't see the uncommitted contact, but doesn't need to wait either
+        val readerDone = CountDownLatch(1)
+        thread {
+            db.read { txn -> assertNull(db.getContact(txn, 1)) }
+            readerDone.countDown()
+        }
+        assertTrue(readerDone.await(10, SECONDS))
+        release.countDown()
+        writer.join()
+        db.read { txn -> assertEquals(contact, db.getContact(txn, 1)) }
+        db.close()
+    }
+
+    @Test
+    fun `test that readers wait for a writer in exclusive mode`() {
+        val config = TestDatabaseConfig(testDir, concurrencyMode = ConcurrencyMode.EXCLUSIVE)
+        val db: Database = open(false, config)
+        val contact = getNewRandomContact(id = 1)
+        val written = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val writer = thread {
+            db.write { txn ->
+                db.addContact(txn, contact)
+                written.countDown()
+                release.await()
+            }
+        }
+        assertTrue(written.await(10, SECONDS))
+        val readerDone = CountDownLatch(1)
+        val reader = thread {
+            db.read { txn -> assertEquals(contact, db.getContact(txn, 1)) }
+            readerDone.countDown()
+        }
+        assertFalse(readerDone.await(200, MILLISECONDS))
+        release.countDown()
+        assertTrue(readerDone.await(10, SECONDS))
+        writer.join()
+        reader.join()
+        db.close()
+    }
+
+    @Test
+    fun `test that queued writes complete after being committed`() {
+        val db: Database = open(false)
+        val contact1 = getNewRandomContact(id = 1)
+        val contact2 = getNewRandomContact(id = 2)
+        val results = listOf(
+            db.writeAsync { txn -> db.addContact(txn, contact1) },
+            // fails and gets rolled back without affecting the other writes
+            db.writeAsync { txn ->
+                db.addContact(txn, contact2)
+                db.addContact(txn, contact1)
+            },
+            db.writeAsync { txn ->
+                db.addContact(txn, contact2)
+                db.getContacts(txn).size
+            },
+        )
+        runBlocking {
+            assertEquals(Unit, results[0].await())
+            assertTrue(runCatching { results[1].await() }.exceptionOrNull() is DbException)
+            assertEquals(2, results[2].await())
+        }
+        db.read { txn ->
+            assertEquals(listOf(contact1, contact2), db.getContacts(txn).sortedBy { it.contactId })
+        }
+        db.close()
+    }
+
+    @Test
+    fun `test that queued writes get committed when closing the database`() {
+        val config = TestDatabaseConfig(
+            testDir,
+            concurrencyMode = concurrencyMode,
+            groupCommitWindowMs = MINUTES.toMillis(1),
+        )
+        val db: Database = open(false, config)
+        val contacts = (1..10).map { getNewRandomContact(it) }
+        val results = contacts.map { contact ->
+            db.writeAsync { txn -> db.addContact(txn, contact) }
+        }
+        assertFalse(results.any { it.isCompleted })
+        db.close()
+        assertTrue(results.all { it.isCompleted })
+
+        val reopened = open(true)
+        reopened.read { txn ->
+            assertEquals(contacts, reopened.getContacts(txn).sortedBy { it.contactId })
+        }
+        reopened.close()
+    }
+
+    @Test
+    fun `test that queued writes fail after closing the database`() {
+        val db: Database = open(false)
+        db.close()
+        val result = db.writeAsync { txn -> db.addContact(txn, getNewRandomContact(1)) }
+        assertTrue(result.isCompleted)
+        assertThrows<DbClosedException> { runBlocking { result.await() } }
+    }
+
+    @Test
+    fun `test that suspending transactions don't block the calling thread`() {
+        val config = TestDatabaseConfig(testDir, concurrencyMode = ConcurrencyMode.EXCLUSIVE)
+        val db: Database = open(false, config)
+        val contact = getNewRandomContact(id = 1)
+        val written = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val writer = thread {
+            db.write { txn ->
+                db.addContact(txn, contact)
+                written.countDown()
+                release.await()
+            }
+        }
+        assertTrue(written.await(10, SECONDS))
+        // runBlocking uses a single thread for all its coroutines
+        runBlocking {
+            val read = async {
+                db.readOnDispatcher { txn ->
+                    assertTrue(Thread.currentThread().name.startsWith("DatabaseDispatcher"))
+                    db.getContact(txn, 1)
+                }
+            }
+            // this can only run while the reader waits for the lock if it doesn't block us
+            launch { release.countDown() }
+            assertEquals(contact, read.await())
+        }
+        writer.join()
+        db.close()
+    }
+
+    @Test
+    fun `test that the database can be compacted while it is open`() {
+        val db: Database = open(false)
+        val contacts = (1..1000).map { getNewRandomContact(it) }
+        db.write { txn -> contacts.forEach { db.addContact(txn, it) } }
+        db.write { txn -> contacts.drop(1).forEach { db.removeContact(txn, it.contactId) } }
+        assertFalse(db.isCompactionDue())
+
+        val result = db.compact()
+        assertTrue(result.sizeBefore > 0)
+        assertTrue(result.sizeAfter > 0)
+        db.read { txn -> assertEquals(contacts.take(1), db.getContacts(txn)) }
+        db.write { txn -> db.addContact(txn, contacts[1]) }
+        db.close()
+    }
+
+    @Test
+    fun `test that the database is idle only without running transactions`() {
+        val db: Database = open(false)
+        db.read {
+            assertEquals(0, db.getIdleTime())
+        }
+        Thread.sleep(10)
+        assertTrue(db.getIdleTime() > 0)
+        db.close()
+    }
+
+    @Test
+    fun `test that cached settings get invalidated when merged settings are committed`() {
+        val db: Database = open(false)
+        val before = Settings().apply { put("foo", "bar") }
+        db.write { txn -> db.mergeSettings(txn, before, "namespace") }
+        // fill the cache and check that changing the returned settings doesn't change the cache
+        db.read { txn -> db.getSettings(txn, "namespace")["foo"] = "changed" }
+        db.read { txn -> assertEquals(before, db.getSettings(txn, "namespace")) }
+
+        // an aborted merge doesn't change the cached settings
+        assertThrows<IllegalStateException> {
+            db.write { txn ->
+                db.mergeSettings(txn, Settings().apply { put("foo", "aborted") }, "namespace")
+                assertEquals("aborted", db.getSettings(txn, "namespace")["foo"])
+                throw IllegalStateException()
+            }
+        }
+        db.read { txn -> assertEquals(before, db.getSettings(txn, "namespace")) }
+
+        // a committed merge does
+        val after = Settings().apply { put("foo", "baz") }
+        db.write { txn -> db.mergeSettings(txn, after, "namespace") }
+        db.read { txn -> assertEquals(after, db.getSettings(txn, "namespace")) }
+        db.close()
+    }
+
+    @Test
+    fun `test that attached events and tasks only run after commit, in commit order`() {
+        val db = open(false)
+        val event1 = object : Event() {}
+        val event2 = object : Event() {}
+        val aborted = object : Event() {}
+        val tasks = ArrayList<String>()
+
+        db.write { txn ->
+            txn.attach(event1)
+            txn.attach { tasks.add("first") }
+            assertTrue(tasks.isEmpty())
+        }
+        assertThrows<IllegalStateException> {
+            db.write { txn ->
+                txn.attach(aborted)
+                txn.attach { tasks.add("aborted") }
+                throw IllegalStateException()
+            }
+        }
+        db.read { txn -> txn.attach(event2) }
+        assertEquals(listOf("first"), tasks)
+        verifyOrder {
+            eventBus.broadcast(event1)
+            eventBus.broadcast(event2)
+        }
+        verify(exactly = 0) { eventBus.broadcast(aborted) }
+        db.close()
+    }
+
+    @Test
+    fun `test that a failing queued write doesn't leave its events attached`() {
+        val db = open(false)
+        val committed = object : Event() {}
+        val failed = object : Event() {}
+
+        val writes = listOf(
+            db.writeAsync { txn -> txn.attach(committed) },
+            db.writeAsync { txn ->
+                txn.attach(failed)
+                throw IllegalStateException()
+            },
+        )
+        runBlocking { writes.forEach { runCatching { it.await() } } }
+        verify(exactly = 1) { eventBus.broadcast(committed) }
+        verify(exactly = 0) { eventBus.broadcast(failed) }
+        db.close()
+    }
+
+    @Test
+    @Throws(java.lang.Exception::class)
+    open fun testMergeSettings() {
+        val before = Settings()
+        before["foo"] = "bar"
+        before["baz"] = "bam"
+        val update = Settings()
+        update["baz"] = "qux"
+        val merged = Settings()
+        merged["foo"] = "bar"
+        merged["baz"] = "qux"
+
+        val db: Database = open(false)
+        db.write { txn ->
+            // store 'before'
+            db.mergeSettings(txn, before, "namespace")
+            assertEquals(before, db.getSettings(txn, "namespace"))
+
+            // merge 'update'
+            db.mergeSettings(txn, update, "namespace")
+            assertEquals(merged, db.getSettings(txn, "namespace"))
+        }
+        db.close()
+    }
+
+}
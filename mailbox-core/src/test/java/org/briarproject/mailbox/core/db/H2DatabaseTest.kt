@@ -2,10 +2,10 @@ package org.briarproject.mailbox.core.db
 
 import org.briarproject.mailbox.core.system.Clock
 
-class H2DatabaseTest : JdbcDatabaseTest() {
+open class H2DatabaseTest : JdbcDatabaseTest() {
 
     override fun createDatabase(config: DatabaseConfig, clock: Clock): JdbcDatabase {
-        return H2Database(config, clock)
+        return H2Database(config, clock, eventBus)
     }
 
 }
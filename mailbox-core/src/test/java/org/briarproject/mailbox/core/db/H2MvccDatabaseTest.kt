@@ -0,0 +1,7 @@
+package org.briarproject.mailbox.core.db
+
+class H2MvccDatabaseTest : H2DatabaseTest() {
+
+    override val concurrencyMode = ConcurrencyMode.MVCC
+
+}
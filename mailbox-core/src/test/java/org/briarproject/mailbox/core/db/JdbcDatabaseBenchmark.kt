@@ -0,0 +1,114 @@
+package org.briarproject.mailbox.core.db
+
+import io.mockk.mockk
+import org.briarproject.mailbox.core.BenchmarkUtils.BENCHMARK_PROPERTY
+import org.briarproject.mailbox.core.BenchmarkUtils.measure
+import org.briarproject.mailbox.core.TestUtils.getNewRandomContact
+import org.briarproject.mailbox.core.contacts.Contact
+import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.DB_SETTINGS_NAMESPACE
+import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.SCHEMA_VERSION_KEY
+import org.briarproject.mailbox.core.db.JdbcDatabase.Companion.CODE_SCHEMA_VERSION
+import org.briarproject.mailbox.core.settings.Settings
+import org.briarproject.mailbox.core.system.Clock
+import org.briarproject.mailbox.core.system.toHex
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty
+import org.junit.jupiter.api.io.TempDir
+import org.slf4j.LoggerFactory.getLogger
+import java.io.File
+import java.sql.Connection
+import kotlin.test.assertEquals
+
+@EnabledIfSystemProperty(named = BENCHMARK_PROPERTY, matches = "true")
+class JdbcDatabaseBenchmark {
+
+    companion object {
+        private val LOG = getLogger(JdbcDatabaseBenchmark::class.java)
+    }
+
+    @TempDir
+    lateinit var testDir: File
+
+    private lateinit var db: JdbcDatabase
+
+    private val iterations = 50_000
+    private val contacts = (1..100).map { getNewRandomContact(it) }
+
+    @BeforeEach
+    fun setUp() {
+        val clock = Clock { System.currentTimeMillis() }
+        db = H2Database(TestDatabaseConfig(testDir), clock, mockk(relaxed = true))
+        db.open(null)
+        db.write { txn ->
+            contacts.forEach { db.addContact(txn, it) }
+        }
+    }
+
+    @AfterEach
+    fun tearDown() {
+        db.close()
+    }
+
+    @Test
+    fun `compare read transactions preparing statements with cached statements`() {
+        var i = 0
+        val preparingNanos = measure("preparing statements", iterations) {
+            val contact = contacts[i++ % contacts.size]
+            db.read { txn ->
+                val connection: Connection = txn.unbox()
+                assertEquals(CODE_SCHEMA_VERSION, getSchemaVersion(connection))
+                assertEquals(contact, getContact(connection, contact.contactId))
+            }
+        }
+        val cachedNanos = measure("cached statements", iterations) {
+            val contact = contacts[i++ % contacts.size]
+            db.read { txn ->
+                val s = db.getSettings(txn, DB_SETTINGS_NAMESPACE)
+                assertEquals(CODE_SCHEMA_VERSION, s.getInt(SCHEMA_VERSION_KEY, -1))
+                assertEquals(contact, db.getContact(txn, contact.contactId))
+            }
+        }
+        LOG.info("read transaction: $preparingNanos ns/op before, $cachedNanos ns/op after")
+    }
+
+    /**
+     * Reads the schema version the way [JdbcDatabase.getSettings] used to,
+     * preparing and closing a new statement every time.
+     */
+    private fun getSchemaVersion(connection: Connection): Int {
+        val sql = """
+                SELECT settingKey, value FROM settings
+                       WHERE namespace = ?
+        """.trimIndent()
+        val ps = connection.prepareStatement(sql)
+        ps.setString(1, DB_SETTINGS_NAMESPACE)
+        val rs = ps.executeQuery()
+        val s = Settings()
+        while (rs.next()) s[rs.getString(1)] = rs.getString(2)
+        rs.close()
+        ps.close()
+        return s.getInt(SCHEMA_VERSION_KEY, -1)
+    }
+
+    /**
+     * Reads a contact the way [JdbcDatabase.getContact] used to,
+     * preparing and closing a new statement every time.
+     */
+    private fun getContact(connection: Connection, id: Int): Contact? {
+        val sql = """SELECT token, inbox, outbox FROM contacts
+                            WHERE contactId = ?
+        """.trimIndent()
+        val ps = connection.prepareStatement(sql)
+        ps.setInt(1, id)
+        val rs = ps.executeQuery()
+        val contact = if (rs.next()) {
+            Contact(id, rs.getBytes(1).toHex(), rs.getBytes(2).toHex(), rs.getBytes(3).toHex())
+        } else null
+        rs.close()
+        ps.close()
+        return contact
+    }
+
+}
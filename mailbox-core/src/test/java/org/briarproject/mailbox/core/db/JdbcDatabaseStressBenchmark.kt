@@ -0,0 +1,117 @@
+package org.briarproject.mailbox.core.db
+
+import io.mockk.mockk
+import org.briarproject.mailbox.core.BenchmarkUtils.BENCHMARK_PROPERTY
+import org.briarproject.mailbox.core.TestUtils.getNewRandomContact
+import org.briarproject.mailbox.core.contacts.Contact
+import org.briarproject.mailbox.core.settings.Settings
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty
+import org.junit.jupiter.api.io.TempDir
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.EnumSource
+import org.slf4j.LoggerFactory.getLogger
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+import kotlin.test.assertNotNull
+
+/**
+ * Runs a mix of read and write transactions from several threads
+ * and reports throughput and latency for each [ConcurrencyMode].
+ */
+@EnabledIfSystemProperty(named = BENCHMARK_PROPERTY, matches = "true")
+class JdbcDatabaseStressBenchmark {
+
+    companion object {
+        private val LOG = getLogger(JdbcDatabaseStressBenchmark::class.java)
+
+        private const val READERS = 8
+        private const val WRITERS = 2
+        private const val WARMUP_MS = 2_000L
+        private const val DURATION_MS = 10_000L
+    }
+
+    @TempDir
+    lateinit var testDir: File
+
+    @ParameterizedTest
+    @EnumSource(ConcurrencyMode::class)
+    fun `mixed read and write load`(mode: ConcurrencyMode) {
+        val config = TestDatabaseConfig(
+            testDir = testDir,
+            maxConnections = READERS + WRITERS,
+            concurrencyMode = mode,
+        )
+        val db = H2Database(config, { System.currentTimeMillis() }, mockk(relaxed = true))
+        db.open(null)
+        val contacts = (1..100).map { getNewRandomContact(it) }
+        db.write { txn ->
+            contacts.forEach { db.addContact(txn, it) }
+        }
+
+        run(db, contacts, WARMUP_MS)
+        val (reads, writes) = run(db, contacts, DURATION_MS)
+        db.close()
+
+        LOG.info("$mode reads: ${reads.summary()}")
+        LOG.info("$mode writes: ${writes.summary()}")
+    }
+
+    /**
+     * Runs the load for [durationMs] and returns the latencies of all reads and writes
+     * in nanoseconds.
+     */
+    private fun run(
+        db: Database,
+        contacts: List<Contact>,
+        durationMs: Long,
+    ): Pair<LongArray, LongArray> {
+        val stop = AtomicBoolean(false)
+        val start = CountDownLatch(1)
+        val readLatencies = List(READERS) { ArrayList<Long>() }
+        val writeLatencies = List(WRITERS) { ArrayList<Long>() }
+        val readers = readLatencies.mapIndexed { r, latencies ->
+            thread {
+                start.await()
+                var i = r
+                while (!stop.get()) {
+                    val token = contacts[i++ % contacts.size].token
+                    val t = System.nanoTime()
+                    db.read { txn -> assertNotNull(db.getContactWithToken(txn, token)) }
+                    latencies.add(System.nanoTime() - t)
+                }
+            }
+        }
+        val writers = writeLatencies.mapIndexed { w, latencies ->
+            thread {
+                start.await()
+                var i = 0L
+                while (!stop.get()) {
+                    val s = Settings()
+                    s.putLong("counter", i++)
+                    val t = System.nanoTime()
+                    db.write { txn -> db.mergeSettings(txn, s, "writer$w") }
+                    latencies.add(System.nanoTime() - t)
+                }
+            }
+        }
+        start.countDown()
+        Thread.sleep(durationMs)
+        stop.set(true)
+        (readers + writers).forEach { it.join() }
+        return Pair(
+            readLatencies.flatten().toLongArray().apply { sort() },
+            writeLatencies.flatten().toLongArray().apply { sort() },
+        )
+    }
+
+    private fun LongArray.summary(): String {
+        if (isEmpty()) return "no operations"
+        val opsPerSecond = size * 1000 / DURATION_MS
+        fun percentile(p: Double) = this[((size - 1) * p).toInt()] / 1000
+        return "$opsPerSecond ops/s, p50 ${percentile(0.5)} µs, p99 ${percentile(0.99)} µs, " +
+            "p99.9 ${percentile(0.999)} µs, max ${last() / 1000} µs"
+    }
+
+}
@@ -1,127 +1,225 @@
 package org.briarproject.mailbox.core.db
 
-import org.briarproject.mailbox.core.TestUtils.deleteTestDirectory
 import org.briarproject.mailbox.core.TestUtils.getNewRandomContact
-import org.briarproject.mailbox.core.contacts.Contact
+import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.DB_SETTINGS_NAMESPACE
+import org.briarproject.mailbox.core.db.DatabaseConstants.Companion.SCHEMA_VERSION_KEY
 import org.briarproject.mailbox.core.settings.Settings
 import org.briarproject.mailbox.core.system.Clock
-import org.briarproject.mailbox.core.system.RandomIdManager
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
-import org.junit.jupiter.api.io.TempDir
-import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeUnit.SECONDS
+import kotlin.concurrent.thread
 import kotlin.test.assertEquals
+import kotlin.test.assertFalse
 import kotlin.test.assertNull
+import kotlin.test.assertTrue
 
-abstract class JdbcDatabaseTest {
+abstract class JdbcDatabaseTest : DatabaseTest() {
 
-    @TempDir
-    lateinit var testDir: File
-
-    private val randomIdManager = RandomIdManager()
-
-    protected abstract fun createDatabase(
+    abstract override fun createDatabase(
         config: DatabaseConfig,
         clock: Clock,
     ): JdbcDatabase
 
-    @Throws(java.lang.Exception::class)
-    fun open(
-        resume: Boolean,
-    ): Database {
-        val db: Database = createDatabase(
-            TestDatabaseConfig(testDir)
-        ) { System.currentTimeMillis() }
-        if (!resume) deleteTestDirectory(testDir)
-        db.open(null)
-        return db
-    }
-
     @Test
-    @Throws(Exception::class)
-    open fun testPersistence() {
-        // Store some records
-        val contact1 = Contact(
-            contactId = 1,
-            token = randomIdManager.getNewRandomId(),
-            inboxId = randomIdManager.getNewRandomId(),
-            outboxId = randomIdManager.getNewRandomId()
-        )
-        val contact2 = Contact(
-            contactId = 2,
-            token = randomIdManager.getNewRandomId(),
-            inboxId = randomIdManager.getNewRandomId(),
-            outboxId = randomIdManager.getNewRandomId()
-        )
-        var db: Database = open(false)
+    fun `test that statements can be reused after a transaction failed`() {
+        val db: Database = open(false)
+        val contact = getNewRandomContact(id = 1)
         db.write { txn ->
-
-            db.addContact(txn, contact1)
-            db.addContact(txn, contact2)
+            db.addContact(txn, contact)
+        }
+        repeat(3) {
+            assertThrows<DbException> {
+                db.write { txn ->
+                    db.addContact(txn, getNewRandomContact(2))
+                    db.addContact(txn, contact)
+                }
+            }
+            db.read { txn ->
+                assertEquals(contact, db.getContact(txn, 1))
+                assertNull(db.getContact(txn, 2))
+                assertEquals(listOf(contact), db.getContacts(txn))
+            }
         }
         db.close()
+    }
 
-        // Check that the records are still there
-        db = open(true)
-        db.write { txn ->
-            val contact1Reloaded1 = db.getContact(txn, 1)
-            val contact2Reloaded1 = db.getContact(txn, 2)
-            assertEquals(contact1, contact1Reloaded1)
-            assertEquals(contact2, contact2Reloaded1)
-            assertEquals(contact1, db.getContactWithToken(txn, contact1.token))
-            assertEquals(contact2, db.getContactWithToken(txn, contact2.token))
-            assertNull(db.getContactWithToken(txn, randomIdManager.getNewRandomId()))
-
-            // Delete one of the records
-            db.removeContact(txn, 1)
+    @Test
+    fun `test that a failed commit gets aborted`() {
+        val config = TestDatabaseConfig(testDir, 1, 1, concurrencyMode)
+        val db: Database = open(false, config)
+        var actionRun = false
+        assertThrows<DbException> {
+            db.write { txn ->
+                db.addContact(txn, getNewRandomContact(id = 1))
+                txn.attach { actionRun = true }
+                // makes committing fail
+                txn.unbox().close()
+            }
         }
+        assertFalse(actionRun)
+        // the broken connection was given up, so its slot can be used again
+        assertEquals(0, db.getConnectionPoolStats().open)
+        db.read { txn -> assertNull(db.getContact(txn, 1)) }
         db.close()
+    }
 
-        // Check that the record is gone
-        db = open(true)
-        db.read { txn ->
-            val contact1Reloaded2 = db.getContact(txn, 1)
-            val contact2Reloaded2 = db.getContact(txn, 2)
-            assertNull(contact1Reloaded2)
-            assertEquals(contact2, contact2Reloaded2)
-        }
+    @Test
+    fun `test that connections get opened when opening the database`() {
+        val config = TestDatabaseConfig(testDir, 3, concurrencyMode = concurrencyMode)
+        val db: Database = open(false, config)
+        val stats = db.getConnectionPoolStats()
+        assertEquals(3, stats.open)
+        assertEquals(3, stats.idle)
+        assertEquals(0, stats.waits)
         db.close()
     }
 
     @Test
-    fun `test that there can not be two contacts with same ID`() {
-        val db: Database = open(false)
-        db.write { txn ->
-            db.addContact(txn, getNewRandomContact(id = 1))
-            assertThrows<DbException> {
-                db.addContact(txn, getNewRandomContact(id = 1))
+    fun `test that transactions wait for a connection when all are in use`() {
+        val config = TestDatabaseConfig(testDir, 0, 2, concurrencyMode)
+        val db: Database = open(false, config)
+        val started = CountDownLatch(2)
+        val release = CountDownLatch(1)
+        val readers = List(2) {
+            thread {
+                db.read {
+                    started.countDown()
+                    release.await()
+                }
             }
         }
+        assertTrue(started.await(10, SECONDS))
+        val waiterDone = CountDownLatch(1)
+        val waiter = thread {
+            db.read { }
+            waiterDone.countDown()
+        }
+        // the third transaction can't get a connection while the other two are running
+        assertFalse(waiterDone.await(200, MILLISECONDS))
+        assertEquals(2, db.getConnectionPoolStats().open)
+
+        release.countDown()
+        assertTrue(waiterDone.await(10, SECONDS))
+        (readers + waiter).forEach { it.join() }
+        val stats = db.getConnectionPoolStats()
+        assertEquals(2, stats.open)
+        assertEquals(2, stats.idle)
+        assertEquals(1, stats.waits)
+        db.close()
     }
 
     @Test
-    @Throws(java.lang.Exception::class)
-    open fun testMergeSettings() {
-        val before = Settings()
-        before["foo"] = "bar"
-        before["baz"] = "bam"
-        val update = Settings()
-        update["baz"] = "qux"
-        val merged = Settings()
-        merged["foo"] = "bar"
-        merged["baz"] = "qux"
-
+    fun `test that transactions are counted in the stats`() {
         val db: Database = open(false)
+        val before = db.getStats()
+        db.write { txn -> db.addContact(txn, getNewRandomContact(id = 1)) }
+        db.read { txn -> db.getContacts(txn) }
+        assertThrows<DbException> {
+            db.write { throw DbException() }
+        }
+        val after = db.getStats()
+        assertEquals(before.commits + 2, after.commits)
+        assertEquals(before.aborts + 1, after.aborts)
+        assertEquals(before.connectionCheckouts + 3, after.connectionCheckouts)
+        assertEquals(before.readLockWait.count + 1, after.readLockWait.count)
+        assertEquals(before.writeLockWait.count + 2, after.writeLockWait.count)
+        assertEquals(before.readTransactions.count + 1, after.readTransactions.count)
+        assertEquals(before.writeTransactions.count + 2, after.writeTransactions.count)
+        db.close()
+    }
+
+    @Test
+    fun `test that contacts stored as hex strings get migrated`() {
+        // more contacts than get migrated in one batch
+        val contacts = (1..2500).map { getNewRandomContact(it) }
+        var db: Database = open(false)
+        // turn the database back into schema version 1
         db.write { txn ->
-            // store 'before'
-            db.mergeSettings(txn, before, "namespace")
-            assertEquals(before, db.getSettings(txn, "namespace"))
+            val connection = txn.unbox()
+            val s = connection.createStatement()
+            s.execute("DROP TABLE contacts")
+            s.execute(
+                """
+                CREATE TABLE contacts
+                       (contactId INT NOT NULL,
+                       token VARCHAR NOT NULL,
+                       inbox VARCHAR NOT NULL,
+                       outbox VARCHAR NOT NULL,
+                       PRIMARY KEY (contactId))
+                """.trimIndent()
+            )
+            s.close()
+            val ps = connection.prepareStatement(
+                "INSERT INTO contacts (contactId, token, inbox, outbox) VALUES (?, ?, ?, ?)"
+            )
+            for (c in contacts) {
+                ps.setInt(1, c.contactId)
+                ps.setString(2, c.token)
+                ps.setString(3, c.inboxId)
+                ps.setString(4, c.outboxId)
+                ps.addBatch()
+            }
+            ps.executeBatch()
+            ps.close()
+            val settings = Settings()
+            settings.putInt(SCHEMA_VERSION_KEY, 1)
+            db.mergeSettings(txn, settings, DB_SETTINGS_NAMESPACE)
+        }
+        db.close()
 
-            // merge 'update'
-            db.mergeSettings(txn, update, "namespace")
-            assertEquals(merged, db.getSettings(txn, "namespace"))
+        var migrations = 0
+        val progress = ArrayList<Int>()
+        val listener = object : MigrationListener {
+            override fun onDatabaseMigration() {
+                migrations++
+            }
+
+            override fun onDatabaseMigrationProgress(done: Int, total: Int) {
+                assertEquals(contacts.size, total)
+                progress.add(done)
+            }
+        }
+        val config = TestDatabaseConfig(testDir, concurrencyMode = concurrencyMode)
+        db = createDatabase(config) { System.currentTimeMillis() }
+        db.open(listener)
+        assertEquals(1, migrations)
+        assertEquals(listOf(1000, 2000, 2500), progress)
+        db.read { txn ->
+            assertEquals(contacts, db.getContacts(txn).sortedBy { it.contactId })
+            val contact = contacts.random()
+            assertEquals(contact, db.getContactWithToken(txn, contact.token))
+            val settings = db.getSettings(txn, DB_SETTINGS_NAMESPACE)
+            assertEquals(JdbcDatabase.CODE_SCHEMA_VERSION, settings.getInt(SCHEMA_VERSION_KEY, -1))
         }
+        // the migration didn't compact the database or drop the old table while opening
+        assertTrue(db.isCompactionDue())
+        assertTrue(db.isMaintenanceDue())
+        db.close()
+
+        // the deferred work and the requested compaction survive reopening the database
+        db = open(true)
+        assertTrue(db.isMaintenanceDue())
+        assertTrue(db.isCompactionDue())
+        db.read { txn -> assertTrue(hasTable(txn, "CONTACTSHEX")) }
+        db.runMaintenance()
+        assertFalse(db.isMaintenanceDue())
+        assertFalse(db.isCompactionDue())
+        db.read { txn -> assertFalse(hasTable(txn, "CONTACTSHEX")) }
+        db.close()
+
+        db = open(true)
+        assertFalse(db.isMaintenanceDue())
         db.close()
     }
 
+    private fun hasTable(txn: Transaction, name: String): Boolean {
+        val tables = txn.unbox().metaData.getTables(null, "PUBLIC", name, null)
+        val exists = tables.next()
+        tables.close()
+        return exists
+    }
+
 }
@@ -0,0 +1,36 @@
+package org.briarproject.mailbox.core.db
+
+import org.junit.jupiter.api.Test
+import java.util.concurrent.TimeUnit.MICROSECONDS
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import kotlin.test.assertEquals
+
+class LatencyHistogramTest {
+
+    @Test
+    fun `empty histogram has no percentiles`() {
+        val stats = LatencyHistogram().getStats()
+        assertEquals(0, stats.count)
+        assertEquals(0, stats.meanUs)
+        assertEquals(0, stats.percentileUs(0.99))
+    }
+
+    @Test
+    fun `durations get counted in exponential buckets`() {
+        val histogram = LatencyHistogram()
+        repeat(98) { histogram.record(MICROSECONDS.toNanos(3)) }
+        histogram.record(MILLISECONDS.toNanos(1))
+        histogram.record(MILLISECONDS.toNanos(10))
+        val stats = histogram.getStats()
+
+        assertEquals(100, stats.count)
+        assertEquals(98 * 3 + 1_000 + 10_000L, stats.totalUs)
+        assertEquals(10_000, stats.maxUs)
+        // 3us is in the bucket [2us, 4us)
+        assertEquals(98, stats.buckets[2])
+        assertEquals(4, stats.percentileUs(0.5))
+        assertEquals(1024, stats.percentileUs(0.99))
+        assertEquals(10_000, stats.percentileUs(1.0))
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.briarproject.mailbox.core.db
+
+import org.briarproject.mailbox.core.TestUtils.getNewRandomContact
+import org.briarproject.mailbox.core.db.LogDatabase.Companion.LOG_FILE
+import org.briarproject.mailbox.core.db.LogDatabase.Companion.SNAPSHOT_FILE
+import org.briarproject.mailbox.core.system.Clock
+import org.junit.jupiter.api.Test
+import java.io.File
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+open class LogDatabaseTest : DatabaseTest() {
+
+    override fun createDatabase(config: DatabaseConfig, clock: Clock): Database {
+        return LogDatabase(config, eventBus)
+    }
+
+    private val logFile get() = File(TestDatabaseConfig(testDir).getDatabaseDirectory(), LOG_FILE)
+    private val snapshotFile
+        get() = File(TestDatabaseConfig(testDir).getDatabaseDirectory(), SNAPSHOT_FILE)
+
+    @Test
+    fun `test that an incomplete commit at the end of the log gets discarded`() {
+        val contact1 = getNewRandomContact(1)
+        val contact2 = getNewRandomContact(2)
+        var db = open(false)
+        db.write { txn -> db.addContact(txn, contact1) }
+        db.close()
+        val length = logFile.length()
+        // a frame header announcing more bytes than were written before crashing
+        logFile.appendBytes(byteArrayOf(0, 0, 1, 0, 1, 2, 3, 4, 5, 6))
+
+        db = open(true)
+        assertEquals(length, logFile.length())
+        db.read { txn -> assertEquals(listOf(contact1), db.getContacts(txn)) }
+        db.write { txn -> db.addContact(txn, contact2) }
+        db.close()
+
+        db = open(true)
+        db.read { txn ->
+            assertEquals(listOf(contact1, contact2), db.getContacts(txn).sortedBy { it.contactId })
+        }
+        db.close()
+    }
+
+    @Test
+    fun `test that a corrupt last commit gets discarded`() {
+        val contact1 = getNewRandomContact(1)
+        val contact2 = getNewRandomContact(2)
+        val db = open(false)
+        db.write { txn -> db.addContact(txn, contact1) }
+        val length = logFile.length()
+        db.write { txn -> db.addContact(txn, contact2) }
+        db.close()
+        // as if the last frame was only partially persisted before crashing
+        val log = logFile.readBytes()
+        log[log.size - 1] = (log[log.size - 1] + 1).toByte()
+        logFile.writeBytes(log)
+
+        val reopened = open(true)
+        assertEquals(length, logFile.length())
+        reopened.read { txn -> assertEquals(listOf(contact1), reopened.getContacts(txn)) }
+        reopened.close()
+    }
+
+    @Test
+    fun `test that a corrupt commit followed by others fails opening`() {
+        val db = open(false)
+        db.write { txn -> db.addContact(txn, getNewRandomContact(1)) }
+        db.write { txn -> db.addContact(txn, getNewRandomContact(2)) }
+        db.close()
+        // flip a byte in the payload of the first frame, behind the file and frame header
+        val log = logFile.readBytes()
+        log[17] = (log[17] + 1).toByte()
+        logFile.writeBytes(log)
+
+        assertFailsWith<DbException> { open(true) }
+        assertEquals(log.size.toLong(), logFile.length())
+    }
+
+    @Test
+    fun `test that the log gets replayed on top of the snapshot`() {
+        val contacts = (1..3).map { getNewRandomContact(it) }
+        var db = open(false)
+        db.write { txn -> contacts.forEach { db.addContact(txn, it) } }
+        val result = db.compact()
+        assertEquals(result.sizeAfter, snapshotFile.length() + logFile.length())
+        db.write { txn -> db.removeContact(txn, 1) }
+        db.close()
+
+        db = open(true)
+        db.read { txn ->
+            assertEquals(contacts.drop(1), db.getContacts(txn).sortedBy { it.contactId })
+            assertEquals(contacts[2], db.getContactWithToken(txn, contacts[2].token))
+        }
+        db.close()
+    }
+
+    @Test
+    fun `test that replaying a log already contained in the snapshot is harmless`() {
+        val contacts = (1..3).map { getNewRandomContact(it) }
+        val db = open(false)
+        db.write { txn -> contacts.forEach { db.addContact(txn, it) } }
+        db.write { txn -> db.removeContact(txn, 1) }
+        val log = logFile.readBytes()
+        db.compact()
+        db.close()
+        // as if the database crashed after writing the snapshot, but before truncating the log
+        logFile.writeBytes(log)
+
+        val reopened = open(true)
+        reopened.read { txn ->
+            assertEquals(contacts.drop(1), reopened.getContacts(txn).sortedBy { it.contactId })
+        }
+        reopened.close()
+    }
+
+    @Test
+    fun `test that dropping all tables deletes the files`() {
+        val db = open(false)
+        db.write { txn -> db.addContact(txn, getNewRandomContact(1)) }
+        db.compact()
+        assertTrue(snapshotFile.exists())
+        db.dropAllTablesAndClose()
+        assertFalse(snapshotFile.exists())
+        assertFalse(logFile.exists())
+
+        val reopened = open(true)
+        reopened.read { txn -> assertTrue(reopened.getContacts(txn).isEmpty()) }
+        reopened.close()
+    }
+
+}
@@ -0,0 +1,7 @@
+package org.briarproject.mailbox.core.db
+
+class LogMvccDatabaseTest : LogDatabaseTest() {
+
+    override val concurrencyMode = ConcurrencyMode.MVCC
+
+}
@@ -2,7 +2,13 @@ package org.briarproject.mailbox.core.db
 
 import java.io.File
 
-class TestDatabaseConfig(testDir: File) : DatabaseConfig {
+class TestDatabaseConfig(
+    testDir: File,
+    private val minConnections: Int = 2,
+    private val maxConnections: Int = 8,
+    private val concurrencyMode: ConcurrencyMode = ConcurrencyMode.EXCLUSIVE,
+    private val groupCommitWindowMs: Long = 10,
+) : DatabaseConfig {
 
     private val dbDir: File = File(testDir, "db")
 
@@ -10,4 +16,12 @@ class TestDatabaseConfig(testDir: File) : DatabaseConfig {
         return dbDir
     }
 
+    override fun getMinConnections(): Int = minConnections
+
+    override fun getMaxConnections(): Int = maxConnections
+
+    override fun getConcurrencyMode(): ConcurrencyMode = concurrencyMode
+
+    override fun getGroupCommitWindowMs(): Long = groupCommitWindowMs
+
 }
@@ -4,6 +4,7 @@ import dagger.Module
 import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.components.SingletonComponent
+import org.briarproject.mailbox.core.event.EventBus
 import org.briarproject.mailbox.core.system.Clock
 import javax.inject.Singleton
 
@@ -13,8 +14,8 @@ internal class TestDatabaseModule {
 
     @Provides
     @Singleton
-    fun provideDatabase(config: DatabaseConfig, clock: Clock): Database {
-        return TestH2Database(config, clock)
+    fun provideDatabase(config: DatabaseConfig, clock: Clock, eventBus: EventBus): Database {
+        return TestH2Database(config, clock, eventBus)
     }
 
     @Provides
@@ -1,11 +1,13 @@
 package org.briarproject.mailbox.core.db
 
+import org.briarproject.mailbox.core.event.EventBus
 import org.briarproject.mailbox.core.system.Clock
 
 class TestH2Database(
     config: DatabaseConfig,
     clock: Clock,
-) : H2Database(config, clock) {
+    eventBus: EventBus,
+) : H2Database(config, clock, eventBus) {
 
     /**
      * A special version of open() for testing that allows reopening a database that has been closed.
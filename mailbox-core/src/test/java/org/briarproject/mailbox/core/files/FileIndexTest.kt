@@ -0,0 +1,101 @@
+package org.briarproject.mailbox.core.files
+
+import org.briarproject.mailbox.core.TestUtils.getNewRandomId
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class FileIndexTest {
+
+    @TempDir
+    lateinit var tempDir: File
+
+    private val fileProvider by lazy {
+        object : FileProvider {
+            override val root: File get() = tempDir
+            override val folderRoot = File(tempDir, "folders")
+            override val tempFilesRoot: File get() = tempDir
+            override fun getTemporaryFile(fileId: String) = File(tempDir, fileId)
+            override fun getFolder(folderId: String) =
+                File(folderRoot, folderId).apply { mkdirs() }
+
+            override fun getFile(folderId: String, fileId: String) =
+                File(getFolder(folderId), fileId)
+        }
+    }
+    private val fileIndex by lazy { FileIndex(fileProvider) }
+    private val folderId = getNewRandomId()
+
+    private fun createFile(time: Long, size: Int = 1, folder: String = folderId): File {
+        return fileProvider.getFile(folder, getNewRandomId()).apply {
+            writeBytes(ByteArray(size))
+            assertTrue(setLastModified(time))
+        }
+    }
+
+    @Test
+    fun `files already on disk are listed in ascending order of time`() {
+        val files = listOf(createFile(3_000), createFile(1_000, 42), createFile(2_000))
+
+        val expected = files.sortedBy { it.lastModified() }.map {
+            IndexedFile(it.name, it.length(), it.lastModified())
+        }
+        assertEquals(expected, fileIndex.listFiles(folderId))
+        assertEquals(42, fileIndex.listFiles(folderId).first().size)
+    }
+
+    @Test
+    fun `added and deleted files are reflected without reading the disk again`() {
+        val old = createFile(1_000)
+        assertEquals(listOf(old.name), fileIndex.listFiles(folderId).map { it.name })
+
+        val new = createFile(2_000)
+        fileIndex.onFileAdded(folderId, new, new.length())
+        assertTrue(old.delete())
+        fileIndex.onFileDeleted(folderId, old.name)
+        assertEquals(listOf(new.name), fileIndex.listFiles(folderId).map { it.name })
+    }
+
+    @Test
+    fun `reconciling picks up changes made behind the index's back`() {
+        val kept = createFile(2_000)
+        val deleted = createFile(3_000)
+        assertEquals(2, fileIndex.listFiles(folderId).size)
+
+        assertTrue(deleted.delete())
+        val added = createFile(1_000)
+        fileIndex.reconcile()
+        assertEquals(listOf(added.name, kept.name), fileIndex.listFiles(folderId).map { it.name })
+    }
+
+    @Test
+    fun `non-empty folders are tracked as files get added and deleted`() {
+        val onDisk = createFile(1_000)
+        val emptyFolderId = getNewRandomId()
+        fileProvider.getFolder(emptyFolderId)
+        assertEquals(setOf(folderId), fileIndex.getNonEmptyFolderIds())
+
+        val otherFolderId = getNewRandomId()
+        val other = createFile(2_000, folder = otherFolderId)
+        fileIndex.onFileAdded(otherFolderId, other, other.length())
+        assertEquals(setOf(folderId, otherFolderId), fileIndex.getNonEmptyFolderIds())
+
+        assertTrue(onDisk.delete())
+        fileIndex.onFileDeleted(folderId, onDisk.name)
+        assertEquals(setOf(otherFolderId), fileIndex.getNonEmptyFolderIds())
+    }
+
+    @Test
+    fun `clearing the index forgets all folders`() {
+        val file = createFile(1_000)
+        assertEquals(1, fileIndex.listFiles(folderId).size)
+        assertTrue(file.delete())
+        assertEquals(1, fileIndex.listFiles(folderId).size)
+
+        fileIndex.clear()
+        assertTrue(fileIndex.listFiles(folderId).isEmpty())
+    }
+
+}
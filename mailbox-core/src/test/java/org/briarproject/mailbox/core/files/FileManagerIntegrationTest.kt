@@ -3,23 +3,41 @@ package org.briarproject.mailbox.core.files
 import io.ktor.client.call.body
 import io.ktor.client.request.delete
 import io.ktor.client.request.get
+import io.ktor.client.request.header
+import io.ktor.client.request.parameter
+import io.ktor.client.request.patch
 import io.ktor.client.request.post
+import io.ktor.client.request.prepareGet
 import io.ktor.client.request.setBody
 import io.ktor.client.statement.HttpResponse
+import io.ktor.client.statement.bodyAsChannel
 import io.ktor.client.statement.bodyAsText
 import io.ktor.client.statement.readBytes
+import io.ktor.http.HttpHeaders
 import io.ktor.http.HttpStatusCode
+import io.ktor.http.content.OutgoingContent
+import io.ktor.utils.io.ByteWriteChannel
+import io.ktor.utils.io.writeFully
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
 import org.briarproject.mailbox.core.TestUtils.assertTimestampRecent
 import org.briarproject.mailbox.core.TestUtils.getNewRandomId
 import org.briarproject.mailbox.core.server.IntegrationTest
+import org.briarproject.mailbox.core.system.toHex
 import org.junit.jupiter.api.Assertions.assertArrayEquals
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
 import java.io.File
+import java.io.IOException
 import java.util.concurrent.TimeUnit.DAYS
 import kotlin.random.Random
 import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNotNull
 import kotlin.test.assertTrue
 
 class FileManagerIntegrationTest : IntegrationTest() {
@@ -137,6 +155,366 @@ class FileManagerIntegrationTest : IntegrationTest() {
         assertNumFiles(0)
     }
 
+    @Test
+    fun `interrupted download can be resumed with a range request`(): Unit = runBlocking {
+        val response: HttpResponse = httpClient.post("$baseUrl/files/${contact1.inboxId}") {
+            authenticateWithToken(ownerToken)
+            setBody(bytes)
+        }
+        assertEquals(HttpStatusCode.OK, response.status)
+        val fileId = httpClient.get("$baseUrl/files/${contact1.inboxId}") {
+            authenticateWithToken(contact1.token)
+        }.body<FileListResponse>().files[0].name
+        val url = "$baseUrl/files/${contact1.inboxId}/$fileId"
+
+        // contact starts downloading the file, but the connection breaks after 90%
+        val received = bytes.size * 9 / 10
+        val partial = ByteArray(received)
+        val etag = httpClient.prepareGet(url) {
+            authenticateWithToken(contact1.token)
+        }.execute { fileResponse ->
+            assertEquals(HttpStatusCode.OK, fileResponse.status)
+            assertEquals("bytes", fileResponse.headers[HttpHeaders.AcceptRanges])
+            fileResponse.bodyAsChannel().readFully(partial, 0, received)
+            assertNotNull(fileResponse.headers[HttpHeaders.ETag])
+        }
+        assertArrayEquals(bytes.copyOf(received), partial)
+        // the ETag only depends on what's on disk, so it survives rebuilding the index
+        val file = fileProvider.getFile(contact1.inboxId, fileId)
+        val size = file.length().toString(16)
+        assertEquals("\"$fileId-$size-${file.lastModified().toString(16)}\"", etag)
+
+        // contact resumes the download and only gets the missing bytes
+        val rangeResponse: HttpResponse = httpClient.get(url) {
+            authenticateWithToken(contact1.token)
+            header(HttpHeaders.Range, "bytes=$received-")
+            header(HttpHeaders.IfRange, etag)
+        }
+        assertEquals(HttpStatusCode.PartialContent, rangeResponse.status)
+        assertEquals(
+            "bytes $received-${bytes.size - 1}/${bytes.size}",
+            rangeResponse.headers[HttpHeaders.ContentRange]
+        )
+        assertArrayEquals(bytes.copyOfRange(received, bytes.size), rangeResponse.readBytes())
+
+        // if the file doesn't match anymore, the full file is sent
+        val mismatchResponse: HttpResponse = httpClient.get(url) {
+            authenticateWithToken(contact1.token)
+            header(HttpHeaders.Range, "bytes=$received-")
+            header(HttpHeaders.IfRange, "\"something else\"")
+        }
+        assertEquals(HttpStatusCode.OK, mismatchResponse.status)
+        assertArrayEquals(bytes, mismatchResponse.readBytes())
+
+        // a range beyond the end of the file can't be satisfied
+        val unsatisfiableResponse: HttpResponse = httpClient.get(url) {
+            authenticateWithToken(contact1.token)
+            header(HttpHeaders.Range, "bytes=${bytes.size}-")
+        }
+        assertEquals(HttpStatusCode.RequestedRangeNotSatisfiable, unsatisfiableResponse.status)
+        val contentRange = unsatisfiableResponse.headers[HttpHeaders.ContentRange]
+        assertEquals("bytes */${bytes.size}", contentRange)
+    }
+
+    @Test
+    fun `upload can be resumed after the connection broke`(): Unit = runBlocking {
+        val uploadsUrl = "$baseUrl/files/${contact1.inboxId}/uploads"
+        val createResponse: HttpResponse = httpClient.post(uploadsUrl) {
+            authenticateWithToken(ownerToken)
+        }
+        assertEquals(HttpStatusCode.Created, createResponse.status)
+        val upload: UploadResponse = createResponse.body()
+        assertEquals(0, upload.length)
+        val uploadUrl = "$uploadsUrl/${upload.id}"
+
+        // owner starts uploading, but the connection breaks after half of the file
+        runCatching {
+            httpClient.patch(uploadUrl) {
+                authenticateWithToken(ownerToken)
+                header(UPLOAD_OFFSET_HEADER, 0)
+                setBody(object : OutgoingContent.WriteChannelContent() {
+                    override suspend fun writeTo(channel: ByteWriteChannel) {
+                        channel.writeFully(bytes, 0, bytes.size / 2)
+                        channel.flush()
+                        throw IOException("Connection broke")
+                    }
+                })
+            }
+        }
+
+        // owner continues from what the mailbox has received,
+        // retrying if the mailbox was still busy with the broken request
+        var length = httpClient.get(uploadUrl) {
+            authenticateWithToken(ownerToken)
+        }.body<UploadResponse>().length
+        while (true) {
+            val appendResponse: HttpResponse = httpClient.patch(uploadUrl) {
+                authenticateWithToken(ownerToken)
+                header(UPLOAD_OFFSET_HEADER, length)
+                setBody(bytes.copyOfRange(length.toInt(), bytes.size))
+            }
+            length = appendResponse.body<UploadResponse>().length
+            if (appendResponse.status == HttpStatusCode.Conflict) continue
+            assertEquals(HttpStatusCode.OK, appendResponse.status)
+            break
+        }
+        assertEquals(bytes.size.toLong(), length)
+
+        // appending at the wrong offset is rejected
+        val conflictResponse: HttpResponse = httpClient.patch(uploadUrl) {
+            authenticateWithToken(ownerToken)
+            header(UPLOAD_OFFSET_HEADER, 0)
+            setBody(bytes)
+        }
+        assertEquals(HttpStatusCode.Conflict, conflictResponse.status)
+        assertEquals(bytes.size.toLong(), conflictResponse.body<UploadResponse>().length)
+
+        // completing the upload moves it into the folder
+        val completeResponse: HttpResponse = httpClient.post(uploadUrl) {
+            authenticateWithToken(ownerToken)
+        }
+        assertEquals(HttpStatusCode.OK, completeResponse.status)
+        assertEquals(HttpStatusCode.NotFound, httpClient.get(uploadUrl) {
+            authenticateWithToken(ownerToken)
+        }.status)
+        assertNoTmpFiles()
+
+        // contact can download the whole file
+        val fileId = httpClient.get("$baseUrl/files/${contact1.inboxId}") {
+            authenticateWithToken(contact1.token)
+        }.body<FileListResponse>().files.single().name
+        val fileResponse: HttpResponse =
+            httpClient.get("$baseUrl/files/${contact1.inboxId}/$fileId") {
+                authenticateWithToken(contact1.token)
+            }
+        assertArrayEquals(bytes, fileResponse.readBytes())
+    }
+
+    @Test
+    fun `abandoned uploads expire`(): Unit = runBlocking {
+        val uploadsUrl = "$baseUrl/files/${contact1.inboxId}/uploads"
+        val upload: UploadResponse = httpClient.post(uploadsUrl) {
+            authenticateWithToken(ownerToken)
+        }.body()
+        val uploadUrl = "$uploadsUrl/${upload.id}"
+        assertEquals(HttpStatusCode.OK, httpClient.get(uploadUrl) {
+            authenticateWithToken(ownerToken)
+        }.status)
+
+        testComponent.getUploadSessionManager().expireSessions(-1)
+
+        assertEquals(HttpStatusCode.NotFound, httpClient.get(uploadUrl) {
+            authenticateWithToken(ownerToken)
+        }.status)
+        assertNoTmpFiles()
+    }
+
+    @Test
+    fun `orphaned temporary files expire`(): Unit = runBlocking {
+        // e.g. left behind by an upload session before the mailbox got restarted
+        fileProvider.getTemporaryFile(getNewRandomId()).writeBytes(bytes)
+
+        testComponent.getUploadSessionManager().expireSessions(-1)
+        assertNoTmpFiles()
+    }
+
+    @Test
+    fun `number of uploads in progress per folder is limited`(): Unit = runBlocking {
+        val uploadsUrl = "$baseUrl/files/${contact1.inboxId}/uploads"
+        repeat(MAX_UPLOAD_SESSIONS_PER_FOLDER) {
+            assertEquals(HttpStatusCode.Created, httpClient.post(uploadsUrl) {
+                authenticateWithToken(ownerToken)
+            }.status)
+        }
+        assertEquals(HttpStatusCode.TooManyRequests, httpClient.post(uploadsUrl) {
+            authenticateWithToken(ownerToken)
+        }.status)
+        // other folders are not affected
+        assertEquals(HttpStatusCode.Created, httpClient.post(
+            "$baseUrl/files/${contact2.inboxId}/uploads"
+        ) {
+            authenticateWithToken(ownerToken)
+        }.status)
+
+        testComponent.getUploadSessionManager().expireSessions(-1)
+        assertNoTmpFiles()
+    }
+
+    @Test
+    fun `batch upload stores each file and reports each result`(): Unit = runBlocking {
+        val content1 = Random.nextBytes(1000)
+        val content2 = Random.nextBytes(2000)
+        val body = ByteArrayOutputStream()
+        DataOutputStream(body).use { out ->
+            out.writeLong(content1.size.toLong())
+            out.write(content1)
+            out.writeLong(content2.size.toLong())
+            out.write(content2)
+        }
+
+        val response: HttpResponse = httpClient.post("$baseUrl/files/${contact1.inboxId}/batch") {
+            authenticateWithToken(ownerToken)
+            setBody(body.toByteArray())
+        }
+        assertEquals(HttpStatusCode.OK, response.status)
+        val results = response.body<PartListResponse>().files
+        assertEquals(listOf(HttpStatusCode.OK.value), results.map { it.status }.distinct())
+        assertEquals(2, results.size)
+        val id1 = assertNotNull(results[0].id)
+        val id2 = assertNotNull(results[1].id)
+        assertArrayEquals(content1, fileProvider.getFile(contact1.inboxId, id1).readBytes())
+        assertArrayEquals(content2, fileProvider.getFile(contact1.inboxId, id2).readBytes())
+        assertNumFiles(2)
+        assertNoTmpFiles()
+    }
+
+    @Test
+    fun `batch upload stops at a file that is too large`(): Unit = runBlocking {
+        val body = ByteArrayOutputStream()
+        DataOutputStream(body).use { out ->
+            out.writeLong(bytes.size.toLong())
+            out.write(bytes)
+            // the announced bytes don't get read, so they don't need to be sent
+            out.writeLong(Long.MAX_VALUE)
+            out.writeLong(bytes.size.toLong())
+            out.write(bytes)
+        }
+
+        val response: HttpResponse = httpClient.post("$baseUrl/files/${contact1.inboxId}/batch") {
+            authenticateWithToken(ownerToken)
+            setBody(body.toByteArray())
+        }
+        assertEquals(HttpStatusCode.OK, response.status)
+        val results = response.body<PartListResponse>().files
+        assertEquals(2, results.size)
+        assertEquals(HttpStatusCode.OK.value, results[0].status)
+        assertEquals(PartResponse(null, HttpStatusCode.PayloadTooLarge.value), results[1])
+        assertNumFiles(1)
+        assertNoTmpFiles()
+    }
+
+    @Test
+    fun `batch upload stops after the maximum number of files`(): Unit = runBlocking {
+        val body = ByteArrayOutputStream()
+        DataOutputStream(body).use { out ->
+            repeat(MAX_BATCH_FILES + 1) {
+                out.writeLong(1)
+                out.write(it)
+            }
+        }
+
+        val response: HttpResponse = httpClient.post("$baseUrl/files/${contact1.inboxId}/batch") {
+            authenticateWithToken(ownerToken)
+            setBody(body.toByteArray())
+        }
+        assertEquals(HttpStatusCode.OK, response.status)
+        val results = response.body<PartListResponse>().files
+        assertEquals(MAX_BATCH_FILES + 1, results.size)
+        assertTrue(results.dropLast(1).all { it.status == HttpStatusCode.OK.value })
+        assertEquals(PartResponse(null, HttpStatusCode.PayloadTooLarge.value), results.last())
+        assertNumFiles(MAX_BATCH_FILES)
+        assertNoTmpFiles()
+    }
+
+    @Test
+    fun `batch upload keeps files before a truncated one`(): Unit = runBlocking {
+        val body = ByteArrayOutputStream()
+        DataOutputStream(body).use { out ->
+            out.writeLong(bytes.size.toLong())
+            out.write(bytes)
+            out.writeLong(bytes.size + 1L)
+            out.write(bytes)
+        }
+
+        val response: HttpResponse = httpClient.post("$baseUrl/files/${contact1.inboxId}/batch") {
+            authenticateWithToken(ownerToken)
+            setBody(body.toByteArray())
+        }
+        assertEquals(HttpStatusCode.OK, response.status)
+        val results = response.body<PartListResponse>().files
+        assertEquals(2, results.size)
+        assertEquals(HttpStatusCode.OK.value, results[0].status)
+        assertEquals(PartResponse(null, HttpStatusCode.BadRequest.value), results[1])
+        assertNumFiles(1)
+        assertNoTmpFiles()
+    }
+
+    @Test
+    fun `batch upload rejects unauthorized folder ID`(): Unit = runBlocking {
+        val response: HttpResponse = httpClient.post("$baseUrl/files/${contact1.inboxId}/batch") {
+            authenticateWithToken(contact2.token)
+            setBody(ByteArray(0))
+        }
+        assertEquals(HttpStatusCode.NotFound, response.status)
+    }
+
+    @Test
+    fun `batch download streams several files in one response`(): Unit = runBlocking {
+        val contents = (1..3).map { Random.nextBytes(1000 + it) }
+        contents.forEach { content ->
+            val response: HttpResponse = httpClient.post("$baseUrl/files/${contact1.inboxId}") {
+                authenticateWithToken(ownerToken)
+                setBody(content)
+            }
+            assertEquals(HttpStatusCode.OK, response.status)
+        }
+        val files = httpClient.get("$baseUrl/files/${contact1.inboxId}") {
+            authenticateWithToken(contact1.token)
+        }.body<FileListResponse>().files
+        val contentById = files.associate { file ->
+            file.name to fileProvider.getFile(contact1.inboxId, file.name).readBytes()
+        }
+        val batchUrl = "$baseUrl/files/${contact1.inboxId}/batch"
+
+        // contact gets the oldest files fitting into the byte budget
+        val budgetResponse: HttpResponse = httpClient.get(batchUrl) {
+            authenticateWithToken(contact1.token)
+            parameter("maxBytes", contentById.values.take(2).sumOf { it.size })
+        }
+        assertEquals(HttpStatusCode.OK, budgetResponse.status)
+        val budgetBatch = readBatch(budgetResponse.readBytes())
+        assertEquals(files.take(2).map { it.name }, budgetBatch.map { it.first })
+        budgetBatch.forEach { (id, bytes) -> assertArrayEquals(contentById[id], bytes) }
+
+        // contact gets the files asked for, unknown files are left out
+        val ids = listOf(files[2].name, getNewRandomId(), files[0].name)
+        val idsResponse: HttpResponse = httpClient.get(batchUrl) {
+            authenticateWithToken(contact1.token)
+            parameter("ids", ids.joinToString(","))
+        }
+        assertEquals(HttpStatusCode.OK, idsResponse.status)
+        val idsBatch = readBatch(idsResponse.readBytes())
+        assertEquals(listOf(files[2].name, files[0].name), idsBatch.map { it.first })
+        idsBatch.forEach { (id, bytes) -> assertArrayEquals(contentById[id], bytes) }
+
+        // the byte budget also applies to the files asked for
+        val idsBudgetResponse: HttpResponse = httpClient.get(batchUrl) {
+            authenticateWithToken(contact1.token)
+            parameter("ids", ids.joinToString(","))
+            parameter("maxBytes", 1)
+        }
+        assertEquals(HttpStatusCode.OK, idsBudgetResponse.status)
+        val idsBudgetBatch = readBatch(idsBudgetResponse.readBytes())
+        assertEquals(listOf(files[2].name), idsBudgetBatch.map { it.first })
+    }
+
+    @Test
+    fun `batch download rejects too many IDs`(): Unit = runBlocking {
+        val response: HttpResponse = httpClient.get("$baseUrl/files/${contact1.inboxId}/batch") {
+            authenticateWithToken(contact1.token)
+            parameter("ids", List(MAX_BATCH_IDS + 1) { getNewRandomId() }.joinToString(","))
+        }
+        assertEquals(HttpStatusCode.BadRequest, response.status)
+    }
+
+    @Test
+    fun `batch download rejects unauthorized folder ID`(): Unit = runBlocking {
+        val response: HttpResponse = httpClient.get("$baseUrl/files/${contact1.inboxId}/batch") {
+            authenticateWithToken(contact2.token)
+        }
+        assertEquals(HttpStatusCode.NotFound, response.status)
+    }
+
     @Test
     fun `list files rejects wrong token`(): Unit = runBlocking {
         assertEquals(0L, metadataManager.ownerConnectionTime.value)
@@ -309,6 +687,57 @@ class FileManagerIntegrationTest : IntegrationTest() {
         assertEquals(0L, metadataManager.ownerConnectionTime.value)
     }
 
+    @Test
+    fun `batch delete removes several files and reports each result`(): Unit = runBlocking {
+        repeat(2) {
+            val response: HttpResponse = httpClient.post("$baseUrl/files/${contact1.inboxId}") {
+                authenticateWithToken(ownerToken)
+                setBody(bytes)
+            }
+            assertEquals(HttpStatusCode.OK, response.status)
+        }
+        val files = httpClient.get("$baseUrl/files/${contact1.inboxId}") {
+            authenticateWithToken(contact1.token)
+        }.body<FileListResponse>().files
+        val unknownId = getNewRandomId()
+        val ids = files.map { it.name } + unknownId
+
+        val response: HttpResponse =
+            httpClient.delete("$baseUrl/files/${contact1.inboxId}/batch") {
+                authenticateWithToken(contact1.token)
+                parameter("ids", ids.joinToString(","))
+            }
+        assertEquals(HttpStatusCode.OK, response.status)
+        val results = response.body<DeleteListResponse>().files
+        assertEquals(
+            files.map { DeleteResponse(it.name, HttpStatusCode.OK.value) } +
+                DeleteResponse(unknownId, HttpStatusCode.NotFound.value),
+            results,
+        )
+        assertNumFiles(0)
+    }
+
+    @Test
+    fun `batch delete rejects unauthorized folder ID`(): Unit = runBlocking {
+        val response: HttpResponse =
+            httpClient.delete("$baseUrl/files/${contact1.inboxId}/batch") {
+                authenticateWithToken(contact2.token)
+                parameter("ids", getNewRandomId())
+            }
+        assertEquals(HttpStatusCode.NotFound, response.status)
+    }
+
+    @Test
+    fun `batch delete rejects invalid file ID`(): Unit = runBlocking {
+        val response: HttpResponse =
+            httpClient.delete("$baseUrl/files/${contact1.inboxId}/batch") {
+                authenticateWithToken(contact1.token)
+                parameter("ids", "${getNewRandomId()},bar")
+            }
+        assertEquals(HttpStatusCode.BadRequest, response.status)
+        assertEquals("Malformed ID: bar", response.bodyAsText())
+    }
+
     @Test
     fun `list folders rejects contacts`(): Unit = runBlocking {
         assertEquals(0L, metadataManager.ownerConnectionTime.value)
@@ -359,6 +788,74 @@ class FileManagerIntegrationTest : IntegrationTest() {
         assertTimestampRecent(metadataManager.ownerConnectionTime.value)
     }
 
+    @Test
+    fun `list files with wait returns once a file arrives`(): Unit = runBlocking {
+        val listing = async {
+            httpClient.get("$baseUrl/files/${contact1.inboxId}") {
+                authenticateWithToken(contact1.token)
+                parameter("wait", 30)
+            }
+        }
+        delay(500)
+        assertFalse(listing.isCompleted)
+
+        // owner uploads a file, which wakes up the waiting contact
+        val start = System.currentTimeMillis()
+        val postResponse: HttpResponse = httpClient.post("$baseUrl/files/${contact1.inboxId}") {
+            authenticateWithToken(ownerToken)
+            setBody(bytes)
+        }
+        assertEquals(HttpStatusCode.OK, postResponse.status)
+        val response = listing.await()
+        assertEquals(HttpStatusCode.OK, response.status)
+        assertEquals(1, response.body<FileListResponse>().files.size)
+        assertTrue(System.currentTimeMillis() - start < 10_000)
+    }
+
+    @Test
+    fun `list files with wait returns empty list after timeout`(): Unit = runBlocking {
+        val response: HttpResponse = httpClient.get("$baseUrl/files/${contact1.inboxId}") {
+            authenticateWithToken(contact1.token)
+            parameter("wait", 1)
+        }
+        assertEquals(HttpStatusCode.OK, response.status)
+        assertEquals("""{"files":[]}""", response.bodyAsText())
+    }
+
+    @Test
+    fun `list files rejects invalid wait`(): Unit = runBlocking {
+        val response: HttpResponse = httpClient.get("$baseUrl/files/${contact1.inboxId}") {
+            authenticateWithToken(contact1.token)
+            parameter("wait", "foo")
+        }
+        assertEquals(HttpStatusCode.BadRequest, response.status)
+    }
+
+    @Test
+    fun `list folders with wait returns once a file arrives`(): Unit = runBlocking {
+        val listing = async {
+            httpClient.get("$baseUrl/folders") {
+                authenticateWithToken(ownerToken)
+                parameter("wait", 30)
+            }
+        }
+        delay(500)
+        assertFalse(listing.isCompleted)
+
+        // contact uploads a file, which wakes up the waiting owner
+        val postResponse: HttpResponse = httpClient.post("$baseUrl/files/${contact1.outboxId}") {
+            authenticateWithToken(contact1.token)
+            setBody(bytes)
+        }
+        assertEquals(HttpStatusCode.OK, postResponse.status)
+        val response = listing.await()
+        assertEquals(HttpStatusCode.OK, response.status)
+        assertEquals(
+            listOf(FolderResponse(contact1.outboxId)),
+            response.body<FolderListResponse>().folders,
+        )
+    }
+
     @Test
     fun `post new file and delete it once stale`(): Unit = runBlocking {
         // owner uploads the file
@@ -397,6 +894,20 @@ class FileManagerIntegrationTest : IntegrationTest() {
         assertNumFiles(0)
     }
 
+    /**
+     * Returns the IDs and bytes of the files in a batch download.
+     */
+    private fun readBatch(batch: ByteArray): List<Pair<String, ByteArray>> {
+        val input = DataInputStream(batch.inputStream())
+        val files = ArrayList<Pair<String, ByteArray>>()
+        while (input.available() > 0) {
+            val id = ByteArray(32).also { input.readFully(it) }.toHex()
+            val bytes = ByteArray(input.readLong().toInt()).also { input.readFully(it) }
+            files.add(id to bytes)
+        }
+        return files
+    }
+
     private fun assertNoTmpFiles() {
         val dir = requireNotNull(this.tempDir)
         val tmp = File(dir, "tmp")
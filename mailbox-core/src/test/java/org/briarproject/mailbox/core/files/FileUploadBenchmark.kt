@@ -0,0 +1,88 @@
+package org.briarproject.mailbox.core.files
+
+import io.ktor.utils.io.ByteChannel
+import io.ktor.utils.io.ByteReadChannel
+import io.ktor.utils.io.close
+import io.ktor.utils.io.jvm.javaio.toInputStream
+import io.ktor.utils.io.writeFully
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import org.briarproject.mailbox.core.BenchmarkUtils.BENCHMARK_PROPERTY
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty
+import org.junit.jupiter.api.io.TempDir
+import org.slf4j.LoggerFactory.getLogger
+import java.io.File
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+import kotlin.test.assertEquals
+
+@EnabledIfSystemProperty(named = BENCHMARK_PROPERTY, matches = "true")
+class FileUploadBenchmark {
+
+    companion object {
+        private val LOG = getLogger(FileUploadBenchmark::class.java)
+    }
+
+    @TempDir
+    lateinit var tempDir: File
+
+    private val uploads = 100
+    private val chunk = Random.nextBytes(4 * 1024)
+    private val chunksPerUpload = 64 // 256 KiB per upload
+    private val chunkDelayMs = 20L
+
+    @Test
+    fun `compare blocking and suspending uploads for many slow clients`() {
+        val blocking = run("blocking stream copy") { channel, file ->
+            // What FileRouteManager.postFile used to do
+            withContext(Dispatchers.IO) {
+                file.outputStream().use { out -> channel.toInputStream().use { it.copyTo(out) } }
+            }
+        }
+        val suspending = run("receiveToFile()", ::receiveToFile)
+        LOG.info("Peak threads: $blocking before, $suspending after")
+    }
+
+    /**
+     * Runs [uploads] concurrent slow uploads through the given [receive] function.
+     *
+     * @return the peak number of live threads while running the uploads.
+     */
+    private fun run(name: String, receive: suspend (ByteReadChannel, File) -> Long): Int {
+        val threads = ManagementFactory.getThreadMXBean()
+        threads.resetPeakThreadCount()
+        val start = System.nanoTime()
+        val sizes = runBlocking(Dispatchers.Default) {
+            (1..uploads).map { i ->
+                val channel = ByteChannel()
+                launch { sendSlowly(channel) }
+                async { receive(channel, File(tempDir, "$name-$i")) }
+            }.awaitAll()
+        }
+        val seconds = (System.nanoTime() - start) / 1e9
+        val expectedSize = chunk.size.toLong() * chunksPerUpload
+        sizes.forEach { assertEquals(expectedSize, it) }
+        val mibPerSecond = uploads * expectedSize / seconds / (1024 * 1024)
+        val peakThreads = threads.peakThreadCount
+        LOG.info(
+            "$name: %.2f s, %.2f MiB/s, %d peak threads".format(seconds, mibPerSecond, peakThreads)
+        )
+        return peakThreads
+    }
+
+    private suspend fun sendSlowly(channel: ByteChannel) {
+        repeat(chunksPerUpload) {
+            channel.writeFully(chunk)
+            channel.flush()
+            delay(chunkDelayMs)
+        }
+        channel.close()
+    }
+
+}
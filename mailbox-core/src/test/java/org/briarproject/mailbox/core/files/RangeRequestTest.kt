@@ -0,0 +1,42 @@
+package org.briarproject.mailbox.core.files
+
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertIs
+import kotlin.test.assertSame
+
+class RangeRequestTest {
+
+    private fun assertPartial(expected: LongRange, header: String, size: Long = 1000) {
+        val request = RangeRequest.parse(header, size)
+        assertIs<RangeRequest.Partial>(request)
+        assertEquals(expected, request.range)
+    }
+
+    @Test
+    fun `single ranges are parsed`() {
+        assertPartial(0L..99, "bytes=0-99")
+        assertPartial(900L..999, "bytes=900-")
+        assertPartial(900L..999, "bytes=-100")
+        // ranges extending beyond the end of the file get shortened
+        assertPartial(900L..999, "bytes=900-5000")
+        assertPartial(0L..999, "bytes=-5000")
+    }
+
+    @Test
+    fun `unsupported or malformed ranges result in the full file`() {
+        assertSame(RangeRequest.Full, RangeRequest.parse(null, 1000))
+        assertSame(RangeRequest.Full, RangeRequest.parse("items=0-99", 1000))
+        assertSame(RangeRequest.Full, RangeRequest.parse("bytes=0-9,20-29", 1000))
+        assertSame(RangeRequest.Full, RangeRequest.parse("bytes=foo", 1000))
+        assertSame(RangeRequest.Full, RangeRequest.parse("bytes=99-0", 1000))
+    }
+
+    @Test
+    fun `ranges outside of the file are unsatisfiable`() {
+        assertSame(RangeRequest.Unsatisfiable, RangeRequest.parse("bytes=1000-", 1000))
+        assertSame(RangeRequest.Unsatisfiable, RangeRequest.parse("bytes=-0", 1000))
+        assertSame(RangeRequest.Unsatisfiable, RangeRequest.parse("bytes=-10", 0))
+    }
+
+}
@@ -0,0 +1,151 @@
+package org.briarproject.mailbox.core.lifecycle
+
+import io.mockk.every
+import io.mockk.justRun
+import io.mockk.mockk
+import io.mockk.verifyOrder
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.briarproject.mailbox.core.db.Database
+import org.briarproject.mailbox.core.db.DatabaseConfig
+import org.briarproject.mailbox.core.db.Transaction
+import org.briarproject.mailbox.core.lifecycle.LifecycleManager.MaintenanceState.FINISHED
+import org.briarproject.mailbox.core.lifecycle.LifecycleManager.StartResult.SERVICE_ERROR
+import org.briarproject.mailbox.core.lifecycle.LifecycleManager.StartResult.SUCCESS
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.Collections.synchronizedList
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit.SECONDS
+import kotlin.test.assertEquals
+
+class LifecycleManagerImplTest {
+
+    private val db: Database = mockk()
+    private val databaseConfig: DatabaseConfig = mockk()
+    private val lifecycleManager = LifecycleManagerImpl(
+        db = db,
+        databaseConfig = databaseConfig,
+        wipeManager = mockk(),
+        system = mockk(),
+        clock = { System.currentTimeMillis() },
+    )
+
+    private val events = synchronizedList(ArrayList<String>())
+
+    @BeforeEach
+    fun setUp() {
+        every { db.open(any()) } returns true
+        every { db.write(any<(Transaction) -> Unit>()) } returns Unit
+        every { db.isMaintenanceDue() } returns false
+        justRun { db.close() }
+    }
+
+    @Test
+    fun `independent services start concurrently`() {
+        // each service can only finish starting while the other one is starting, too
+        val barrier = CyclicBarrier(2)
+        repeat(2) {
+            lifecycleManager.registerService(TestService("$it") { barrier.await(10, SECONDS) })
+        }
+        assertEquals(SUCCESS, lifecycleManager.startServices())
+        lifecycleManager.stopServices(false)
+    }
+
+    @Test
+    fun `services start after and stop before their dependencies`() {
+        val dependency = TestService("dependency") { Thread.sleep(100) }
+        val dependent = TestService("dependent")
+        lifecycleManager.registerService(dependency)
+        lifecycleManager.registerService(dependent, listOf(dependency))
+
+        assertEquals(SUCCESS, lifecycleManager.startServices())
+        assertEquals(listOf("start dependency", "start dependent"), events)
+        events.clear()
+        lifecycleManager.stopServices(false)
+        assertEquals(listOf("stop dependent", "stop dependency"), events)
+    }
+
+    @Test
+    fun `dependents stop before a shared dependency`() {
+        val dependency = TestService("dependency")
+        val dependents = List(2) { TestService("dependent $it") }
+        lifecycleManager.registerService(dependency)
+        dependents.forEach { lifecycleManager.registerService(it, listOf(dependency)) }
+
+        assertEquals(SUCCESS, lifecycleManager.startServices())
+        events.clear()
+        lifecycleManager.stopServices(false)
+        assertEquals("stop dependency", events.last())
+    }
+
+    @Test
+    fun `failing service causes a service error`() {
+        lifecycleManager.registerService(TestService("ok"))
+        lifecycleManager.registerService(TestService("failing") { throw ServiceException() })
+        assertEquals(SERVICE_ERROR, lifecycleManager.startServices())
+    }
+
+    @Test
+    fun `deferred maintenance runs after services have been started`() {
+        every { db.isMaintenanceDue() } returns true
+        every { databaseConfig.isMaintenanceDeferred() } returns true
+        justRun { db.runMaintenance() }
+        val service: Service = mockk(relaxed = true)
+        lifecycleManager.registerService(service)
+
+        assertEquals(SUCCESS, lifecycleManager.startServices())
+        runBlocking {
+            withTimeout(10_000) {
+                lifecycleManager.maintenanceStateFlow.first { it == FINISHED }
+            }
+        }
+        verifyOrder {
+            service.startService()
+            db.runMaintenance()
+        }
+        lifecycleManager.stopServices(false)
+    }
+
+    @Test
+    fun `maintenance runs before services if not deferred`() {
+        every { db.isMaintenanceDue() } returns true
+        every { databaseConfig.isMaintenanceDeferred() } returns false
+        justRun { db.runMaintenance() }
+        val service: Service = mockk(relaxed = true)
+        lifecycleManager.registerService(service)
+
+        assertEquals(SUCCESS, lifecycleManager.startServices())
+        assertEquals(FINISHED, lifecycleManager.maintenanceStateFlow.value)
+        verifyOrder {
+            db.runMaintenance()
+            service.startService()
+        }
+        lifecycleManager.stopServices(false)
+    }
+
+    @Test
+    fun `dependencies must be registered first`() {
+        assertThrows<IllegalArgumentException> {
+            lifecycleManager.registerService(TestService("dependent"), listOf(TestService("other")))
+        }
+    }
+
+    private inner class TestService(
+        private val name: String,
+        private val onStart: () -> Unit = {},
+    ) : Service {
+
+        override fun startService() {
+            onStart()
+            events.add("start $name")
+        }
+
+        override fun stopService() {
+            events.add("stop $name")
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package org.briarproject.mailbox.core.server
+
+import org.briarproject.mailbox.core.BenchmarkUtils.BENCHMARK_PROPERTY
+import org.briarproject.mailbox.core.BenchmarkUtils.measure
+import org.briarproject.mailbox.core.TestUtils.getNewRandomContact
+import org.briarproject.mailbox.core.server.MailboxPrincipal.ContactPrincipal
+import org.briarproject.mailbox.core.server.MailboxPrincipal.OwnerPrincipal
+import org.briarproject.mailbox.core.server.MailboxPrincipal.SetupPrincipal
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty
+import org.slf4j.LoggerFactory.getLogger
+import kotlin.test.assertEquals
+
+@EnabledIfSystemProperty(named = BENCHMARK_PROPERTY, matches = "true")
+class AuthManagerBenchmark : IntegrationTest() {
+
+    companion object {
+        private val LOG = getLogger(AuthManagerBenchmark::class.java)
+    }
+
+    private val iterations = 100_000
+
+    @Test
+    fun `compare token lookup in database with cached lookup`() {
+        val contacts = (1..500).map { getNewRandomContact(it) }
+        contacts.forEach { addContact(it) }
+        val tokens = contacts.map { it.token }
+
+        var i = 0
+        val databaseNanos = measure("database lookup", iterations) {
+            val token = tokens[i++ % tokens.size]
+            assertEquals(token, getPrincipalFromDatabase(token)?.contact?.token)
+        }
+        val cachedNanos = measure("cached lookup", iterations) {
+            val token = tokens[i++ % tokens.size]
+            assertEquals(token, (authManager.getPrincipal(token) as ContactPrincipal).contact.token)
+        }
+        LOG.info("getPrincipal(): $databaseNanos ns/op before, $cachedNanos ns/op after")
+    }
+
+    /**
+     * The lookup [AuthManager.getPrincipal] used to do for every request.
+     */
+    private fun getPrincipalFromDatabase(token: String) = db.read { txn ->
+        val contact = db.getContactWithToken(txn, token)
+        when {
+            contact != null -> ContactPrincipal(contact)
+            setupManager.getOwnerToken(txn) == token -> OwnerPrincipal
+            setupManager.getSetupToken(txn) == token -> SetupPrincipal
+            else -> null
+        } as? ContactPrincipal
+    }
+
+}
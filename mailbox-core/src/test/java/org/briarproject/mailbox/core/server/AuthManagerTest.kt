@@ -47,17 +47,42 @@ class AuthManagerTest {
     @Test
     fun `getPrincipal() returns authenticated contact`() {
         db.everyRead { txn ->
-            every { db.getContactWithToken(txn, id) } returns contactPrincipal.contact
+            every { db.getContacts(txn) } returns listOf(contact, getNewRandomContact())
+            authManager.onDatabaseOpened(txn)
         }
-        assertEquals(contactPrincipal, authManager.getPrincipal(id))
+        assertEquals(contactPrincipal, authManager.getPrincipal(contact.token))
     }
 
     @Test
-    fun `getPrincipal() returns authenticated owner`() {
+    fun `getPrincipal() returns contact added after opening database`() {
         db.everyRead { txn ->
-            every { db.getContactWithToken(txn, id) } returns null
-            every { setupManager.getOwnerToken(txn) } returns id
+            every { db.getContacts(txn) } returns emptyList()
+            authManager.onDatabaseOpened(txn)
         }
+        every { setupManager.getOwnerToken() } returns otherId
+        every { setupManager.getSetupToken() } returns null
+        assertNull(authManager.getPrincipal(contact.token))
+
+        authManager.onContactAdded(contact)
+        assertEquals(contactPrincipal, authManager.getPrincipal(contact.token))
+    }
+
+    @Test
+    fun `getPrincipal() returns null for removed contact`() {
+        db.everyRead { txn ->
+            every { db.getContacts(txn) } returns listOf(contact)
+            authManager.onDatabaseOpened(txn)
+        }
+        every { setupManager.getOwnerToken() } returns otherId
+        every { setupManager.getSetupToken() } returns null
+
+        authManager.onContactRemoved(contact)
+        assertNull(authManager.getPrincipal(contact.token))
+    }
+
+    @Test
+    fun `getPrincipal() returns authenticated owner`() {
+        every { setupManager.getOwnerToken() } returns id
         every { metadataManager.onOwnerConnected() } just Runs
 
         assertEquals(OwnerPrincipal, authManager.getPrincipal(id))
@@ -65,22 +90,16 @@ class AuthManagerTest {
 
     @Test
     fun `getPrincipal() returns null when unauthenticated`() {
-        db.everyRead { txn ->
-            every { db.getContactWithToken(txn, id) } returns null
-            every { setupManager.getOwnerToken(txn) } returns otherId
-            every { setupManager.getSetupToken(txn) } returns otherId
-        }
+        every { setupManager.getOwnerToken() } returns otherId
+        every { setupManager.getSetupToken() } returns otherId
 
         assertNull(authManager.getPrincipal(id))
     }
 
     @Test
     fun `getPrincipal() returns SetupPrincipal`() {
-        db.everyRead { txn ->
-            every { db.getContactWithToken(txn, id) } returns null
-            every { setupManager.getOwnerToken(txn) } returns otherId
-            every { setupManager.getSetupToken(txn) } returns id
-        }
+        every { setupManager.getOwnerToken() } returns otherId
+        every { setupManager.getSetupToken() } returns id
 
         assertEquals(SetupPrincipal, authManager.getPrincipal(id))
     }
@@ -95,7 +114,8 @@ class AuthManagerTest {
     @Test
     fun `assertCanDownloadFromFolder() throws if owner wants non-existent folder`() {
         db.everyRead { txn ->
-            every { db.getContacts(txn) } returns emptyList()
+            every { db.getContacts(txn) } returns listOf(contact)
+            authManager.onDatabaseOpened(txn)
         }
 
         assertThrows<NotFoundException> {
@@ -117,6 +137,7 @@ class AuthManagerTest {
     fun `assertCanDownloadFromFolder() lets owner access contact's outbox folder`() {
         db.everyRead { txn ->
             every { db.getContacts(txn) } returns listOf(contact, getNewRandomContact())
+            authManager.onDatabaseOpened(txn)
         }
 
         authManager.assertCanDownloadFromFolder(OwnerPrincipal, contact.outboxId)
@@ -137,7 +158,8 @@ class AuthManagerTest {
     @Test
     fun `assertCanPostToFolder() throws if owner wants non-existent folder`() {
         db.everyRead { txn ->
-            every { db.getContacts(txn) } returns emptyList()
+            every { db.getContacts(txn) } returns listOf(contact)
+            authManager.onDatabaseOpened(txn)
         }
 
         assertThrows<NotFoundException> {
@@ -159,11 +181,28 @@ class AuthManagerTest {
     fun `assertCanPostToFolder() lets owner access contact's inbox folder`() {
         db.everyRead { txn ->
             every { db.getContacts(txn) } returns listOf(contact, getNewRandomContact())
+            authManager.onDatabaseOpened(txn)
         }
 
         authManager.assertCanPostToFolder(OwnerPrincipal, contact.inboxId)
     }
 
+    @Test
+    fun `owner can not access folders of removed contact`() {
+        db.everyRead { txn ->
+            every { db.getContacts(txn) } returns listOf(contact)
+            authManager.onDatabaseOpened(txn)
+        }
+        authManager.onContactRemoved(contact)
+
+        assertThrows<NotFoundException> {
+            authManager.assertCanPostToFolder(OwnerPrincipal, contact.inboxId)
+        }
+        assertThrows<NotFoundException> {
+            authManager.assertCanDownloadFromFolder(OwnerPrincipal, contact.outboxId)
+        }
+    }
+
     @Test
     fun `assertCanPostToFolder() lets contact access their outbox folder`() {
         authManager.assertCanPostToFolder(contactPrincipal, contact.outboxId)
@@ -43,6 +43,7 @@ abstract class IntegrationTest(private val installJsonFeature: Boolean = true) {
     private val lifecycleManager by lazy { testComponent.getLifecycleManager() }
     protected val setupManager by lazy { testComponent.getSetupManager() }
     protected val metadataManager by lazy { testComponent.getMetadataManager() }
+    protected val authManager by lazy { testComponent.getAuthManager() }
     protected val wipeManager by lazy { testComponent.getWipeManager() }
     protected val httpClient = HttpClient(CIO) {
         expectSuccess = false // prevents exceptions on non-success responses
@@ -101,6 +102,8 @@ abstract class IntegrationTest(private val installJsonFeature: Boolean = true) {
         db.read { txn ->
             // clears [metadataManager.ownerConnectionTime]
             metadataManager.onDatabaseOpened(txn)
+            // clears contacts remembered by [authManager]
+            authManager.onDatabaseOpened(txn)
         }
         assertTrue(setupManager.hasDb)
     }
@@ -133,6 +136,7 @@ abstract class IntegrationTest(private val installJsonFeature: Boolean = true) {
         db.write { txn ->
             db.addContact(txn, c)
         }
+        authManager.onContactAdded(c)
     }
 
     protected fun HttpRequestBuilder.authenticateWithToken(t: String) {
@@ -0,0 +1,90 @@
+package org.briarproject.mailbox.core.settings
+
+import io.mockk.Runs
+import io.mockk.every
+import io.mockk.just
+import io.mockk.mockk
+import io.mockk.verify
+import kotlinx.coroutines.CompletableDeferred
+import org.briarproject.mailbox.core.db.DatabaseConfig
+import org.briarproject.mailbox.core.db.DbException
+import org.briarproject.mailbox.core.db.Transaction
+import org.briarproject.mailbox.core.system.Clock
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import kotlin.test.assertEquals
+
+class MetadataManagerTest {
+
+    private val settingsManager: SettingsManager = mockk()
+    private var time = 1_000_000L
+    private val clock = Clock { time }
+
+    private val interval = 60_000L
+    private val databaseConfig: DatabaseConfig = mockk {
+        every { getOwnerConnectionPersistIntervalMs() } returns interval
+    }
+
+    private val metadataManager = MetadataManagerImpl(settingsManager, clock, databaseConfig)
+
+    @BeforeEach
+    fun beforeEach() {
+        val txn = Transaction(mockk(), true)
+        every { settingsManager.getSettings(txn, any()) } returns Settings()
+        every { settingsManager.mergeSettings(any(), any()) } just Runs
+        every { settingsManager.mergeSettingsAsync(any(), any()) } returns CompletableDeferred(Unit)
+        metadataManager.onDatabaseOpened(txn)
+    }
+
+    @Test
+    fun `owner connections within interval get stored only once`() {
+        metadataManager.onOwnerConnected()
+        assertEquals(time, metadataManager.ownerConnectionTime.value)
+
+        time += interval - 1
+        metadataManager.onOwnerConnected()
+        assertEquals(time, metadataManager.ownerConnectionTime.value)
+        verify(exactly = 1) { settingsManager.mergeSettingsAsync(any(), any()) }
+
+        time += 1
+        metadataManager.onOwnerConnected()
+        verify(exactly = 2) { settingsManager.mergeSettingsAsync(any(), any()) }
+        verify(exactly = 0) { settingsManager.mergeSettings(any(), any()) }
+    }
+
+    @Test
+    fun `next owner connection gets stored if storing failed`() {
+        val failed = CompletableDeferred<Unit>()
+        failed.completeExceptionally(DbException())
+        every { settingsManager.mergeSettingsAsync(any(), any()) } returns failed
+        metadataManager.onOwnerConnected()
+
+        time += 1
+        metadataManager.onOwnerConnected()
+        verify(exactly = 2) { settingsManager.mergeSettingsAsync(any(), any()) }
+    }
+
+    @Test
+    fun `latest owner connection gets stored when stopping`() {
+        metadataManager.onOwnerConnected()
+        time += 1
+        metadataManager.onOwnerConnected()
+        verify(exactly = 1) { settingsManager.mergeSettingsAsync(any(), any()) }
+
+        metadataManager.stopService()
+        verify(exactly = 1) {
+            settingsManager.mergeSettings(
+                match { it.getLong("lastConnectionTime", 0L) == time }, any()
+            )
+        }
+    }
+
+    @Test
+    fun `nothing gets stored when stopping without new owner connection`() {
+        metadataManager.onOwnerConnected()
+        metadataManager.stopService()
+        verify(exactly = 1) { settingsManager.mergeSettingsAsync(any(), any()) }
+        verify(exactly = 0) { settingsManager.mergeSettings(any(), any()) }
+    }
+
+}
@@ -24,6 +24,7 @@ import dagger.Provides
 import dagger.hilt.InstallIn
 import dagger.hilt.components.SingletonComponent
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager
+import org.briarproject.mailbox.core.server.WebServerManager
 import javax.inject.Singleton
 
 @Module
@@ -32,8 +33,13 @@ class FakeTorModule {
 
     @Provides
     @Singleton
-    fun provideTorPlugin(lifecycleManager: LifecycleManager, plugin: FakeTorPlugin): TorPlugin {
-        lifecycleManager.registerService(plugin)
+    fun provideTorPlugin(
+        lifecycleManager: LifecycleManager,
+        plugin: FakeTorPlugin,
+        webServerManager: WebServerManager,
+    ): TorPlugin {
+        // Like the real plugin, only reports being published once the web server is up
+        lifecycleManager.registerService(plugin, listOf(webServerManager))
         return plugin
     }
 
@@ -73,7 +73,8 @@ class JavaTorModule {
             architecture,
             torDir
         ) { webServerManager.port }.also {
-            lifecycleManager.registerService(it)
+            // The hidden service forwards connections to the web server
+            lifecycleManager.registerService(it, listOf(webServerManager))
             eventBus.addListener(it)
         }
     }
@@ -24,6 +24,8 @@ import kotlinx.coroutines.flow.takeWhile
 import kotlinx.coroutines.runBlocking
 import org.briarproject.mailbox.core.CoreEagerSingletons
 import org.briarproject.mailbox.core.MailboxLibEagerSingletons
+import org.briarproject.mailbox.core.db.Database
+import org.briarproject.mailbox.core.db.DatabaseStats
 import org.briarproject.mailbox.core.db.TransactionManager
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager
 import org.briarproject.mailbox.core.lifecycle.LifecycleManager.StartResult.SUCCESS
@@ -58,6 +60,9 @@ abstract class AbstractMailbox(protected val customDataDir: File? = null) {
     @Inject
     internal lateinit var db: TransactionManager
 
+    @Inject
+    internal lateinit var database: Database
+
     @Inject
     internal lateinit var setupManager: SetupManager
 
@@ -137,6 +142,12 @@ abstract class AbstractMailbox(protected val customDataDir: File? = null) {
         return qrCodeEncoder.getLink()
     }
 
+    /**
+     * Returns transaction, lock wait and connection pool statistics of the database,
+     * collected since the mailbox was created.
+     */
+    fun getDatabaseStats(): DatabaseStats = database.getStats()
+
     /**
      * The port, the webserver has bound to.
      * Accessing this will block the current thread until the port chosen by the webserver is known.
@@ -107,10 +107,10 @@ open class MailboxLibModule(private val customDataDir: File? = null) {
     @Provides
     fun provideFileProvider() = object : FileProvider {
         override val root: File get() = dataDir
-        private val tempFilesDir = File(dataDir, "tmp").apply { mkdirs() }
+        override val tempFilesRoot = File(dataDir, "tmp").apply { mkdirs() }
         override val folderRoot = File(dataDir, "folders").apply { mkdirs() }
 
-        override fun getTemporaryFile(fileId: String) = File(tempFilesDir, fileId)
+        override fun getTemporaryFile(fileId: String) = File(tempFilesRoot, fileId)
         override fun getFolder(folderId: String) = File(folderRoot, folderId).apply { mkdirs() }
         override fun getFile(folderId: String, fileId: String) = File(getFolder(folderId), fileId)
     }